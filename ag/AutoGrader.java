@@ -189,6 +189,38 @@ public class AutoGrader {
 	currentThread = thread;
     }
 
+    /**
+     * Notify the autograder that the current thread is giving the processor to
+     * another thread. <tt>KThread.run()</tt> <i>must</i> call this method
+     * before switching threads.
+     *
+     * @param	runTicks	how long the current thread has been running,
+     *				or -1 if it is the idle thread.
+     * @param	voluntary	<tt>true</tt> if the current thread blocked or
+     *				finished, <tt>false</tt> if it is still ready.
+     * @param	readyTicks	how long the next thread has been ready, or -1
+     *				if it is the idle thread.
+     * @param	numReady	the number of threads waiting to run.
+     */
+    public void switchingThread(long runTicks, boolean voluntary,
+				long readyTicks, int numReady) {
+	Stats stats = privilege.stats;
+
+	if (runTicks >= 0) {
+	    if (voluntary)
+		stats.numVoluntarySwitches++;
+	    else
+		stats.numInvoluntarySwitches++;
+
+	    stats.runTicks.add(runTicks);
+	}
+
+	if (readyTicks >= 0)
+	    stats.readyTicks.add(readyTicks);
+
+	stats.numReadyThreads.add(numReady);
+    }
+
     /**
      * Notify the autograder that the current thread has finished.
      * <tt>KThread.finish()</tt> <i>must</i> call this method before putting
@@ -0,0 +1,115 @@
+// PART OF THE MACHINE SIMULATION. DO NOT CHANGE.
+
+package nachos.machine;
+
+import java.io.PrintStream;
+
+/**
+ * A histogram of non-negative values, with a fixed set of buckets whose
+ * sizes grow in powers of two. Bucket 0 holds only 0, bucket <i>i</i> holds
+ * values from 2<sup><i>i</i>-1</sup> up to but not including
+ * 2<sup><i>i</i></sup>, and the last bucket also holds everything larger.
+ */
+public final class Histogram {
+    /**
+     * Allocate a new, empty histogram.
+     *
+     * @param	name	what this histogram measures, for printing.
+     */
+    public Histogram(String name) {
+	this.name = name;
+    }
+
+    /**
+     * Add a value to this histogram.
+     *
+     * @param	value	the value to add. Negative values are counted as 0.
+     */
+    public void add(long value) {
+	if (value < 0)
+	    value = 0;
+
+	int bucket = 64 - Long.numberOfLeadingZeros(value);
+	if (bucket >= numBuckets)
+	    bucket = numBuckets-1;
+
+	buckets[bucket]++;
+	count++;
+	total += value;
+	max = Math.max(max, value);
+    }
+
+    /**
+     * Return the smallest value that falls in the specified bucket.
+     *
+     * @param	bucket	the bucket.
+     * @return	the lower bound of the bucket.
+     */
+    public static long getLowerBound(int bucket) {
+	Lib.assertTrue(bucket >= 0 && bucket < numBuckets);
+
+	return (bucket == 0) ? 0 : 1L << (bucket-1);
+    }
+
+    /**
+     * Return the number of values added that fall in the specified bucket.
+     *
+     * @param	bucket	the bucket.
+     * @return	the number of values in the bucket.
+     */
+    public long getCount(int bucket) {
+	return buckets[bucket];
+    }
+
+    /**
+     * Return the number of values added to this histogram.
+     *
+     * @return	the number of values.
+     */
+    public long getCount() {
+	return count;
+    }
+
+    /**
+     * Print a summary of this histogram, and one line for each bucket that is
+     * not empty. Prints nothing if no values have been added.
+     */
+    public void print() {
+	if (count == 0)
+	    return;
+
+	System.out.println(name + ": count " + count
+			   + ", mean " + (total / count)
+			   + ", max " + max);
+
+	for (int i=0; i<numBuckets; i++) {
+	    if (buckets[i] == 0)
+		continue;
+
+	    String range = (i == numBuckets-1) ? (getLowerBound(i) + "+") :
+		(i <= 1) ? ("" + getLowerBound(i)) :
+		(getLowerBound(i) + "-" + (getLowerBound(i+1)-1));
+
+	    System.out.println("\t" + range + ": " + buckets[i]);
+	}
+    }
+
+    /**
+     * Print every bucket of this histogram as comma-separated values, one
+     * line per bucket: the histogram name, the bucket's lower bound, and the
+     * number of values in it.
+     *
+     * @param	out	the stream to print to.
+     */
+    public void printCSV(PrintStream out) {
+	for (int i=0; i<numBuckets; i++)
+	    out.println(name + "," + getLowerBound(i) + "," + buckets[i]);
+    }
+
+    /** The number of buckets in every histogram. */
+    public static final int numBuckets = 24;
+
+    private String name;
+    private long[] buckets = new long[numBuckets];
+    private long count = 0, total = 0, max = 0;
+}
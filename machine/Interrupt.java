@@ -4,9 +4,7 @@ package nachos.machine;
 
 import nachos.security.*;
 
-import java.util.TreeSet;
-import java.util.Iterator;
-import java.util.SortedSet;
+import java.util.Arrays;
 
 /**
  * The <tt>Interrupt</tt> class emulates low-level interrupt hardware. The
@@ -53,7 +51,8 @@ public final class Interrupt {
 	privilege.interrupt = new InterruptPrivilege();
 	
 	enabled = false;
-	pending = new TreeSet<PendingInterrupt>();
+	pending = new PendingInterrupt[16];
+	numPending = 0;
     }
 
     /**
@@ -120,29 +119,73 @@ public final class Interrupt {
 	return !enabled;
     }
 
+    /**
+     * Advance the simulated time to just before the next pending interrupt is
+     * due, without invoking any interrupt handlers. Kernel ticks are charged
+     * exactly as if the kernel had spun, re-enabling interrupts, until then;
+     * the next time interrupts are enabled, the interrupt will fire.
+     *
+     * <p>
+     * This is meant for an idle kernel with nothing to run, and must be
+     * called with interrupts disabled.
+     */
+    public void idle() {
+	Lib.assertTrue(disabled());
+
+	// the interrupt trace shows every tick, so spin the long way
+	if (numPending == 0 || Lib.test(dbgInt))
+	    return;
+
+	Stats stats = privilege.stats;
+	long skipped = (pending[0].time - stats.totalTicks - 1) / Stats.KernelTick;
+
+	if (skipped > 0) {
+	    stats.kernelTicks += skipped * Stats.KernelTick;
+	    stats.totalTicks += skipped * Stats.KernelTick;
+	}
+    }
+
     private void schedule(long when, String type, Runnable handler) {
 	Lib.assertTrue(when>0);
 	
 	long time = privilege.stats.totalTicks + when;
-	PendingInterrupt toOccur = new PendingInterrupt(time, type, handler);
+
+	PendingInterrupt toOccur = freeList;
+	if (toOccur != null)
+	    freeList = toOccur.nextFree;
+	else
+	    toOccur = new PendingInterrupt();
+
+	toOccur.time = time;
+	toOccur.type = type;
+	toOccur.handler = handler;
+	toOccur.id = numPendingInterruptsCreated++;
+	toOccur.nextFree = null;
 
 	Lib.debug(dbgInt,
 		  "Scheduling the " + type +
 		  " interrupt handler at time = " + time);
 
-	pending.add(toOccur);
+	if (numPending == pending.length)
+	    pending = Arrays.copyOf(pending, numPending*2);
+
+	siftUp(numPending++, toOccur);
     }
 
     private void tick(boolean inKernelMode) {
+	tick(inKernelMode, 1);
+    }
+
+    private void tick(boolean inKernelMode, int numTicks) {
 	Stats stats = privilege.stats;
 
 	if (inKernelMode) {
-	    stats.kernelTicks += Stats.KernelTick;
-	    stats.totalTicks += Stats.KernelTick;
+	    stats.kernelTicks += (long) Stats.KernelTick * numTicks;
+	    stats.totalTicks += (long) Stats.KernelTick * numTicks;
 	}
 	else {
-	    stats.userTicks += Stats.UserTick;
-	    stats.totalTicks += Stats.UserTick;
+	    stats.userTicks += (long) Stats.UserTick * numTicks;
+	    stats.totalTicks += (long) Stats.UserTick * numTicks;
 	}
 
 	if (Lib.test(dbgInt))
@@ -153,6 +196,13 @@ public final class Interrupt {
 	enabled = true;
     }
 
+    private long nextInterruptTime() {
+	if (numPending == 0)
+	    return Long.MAX_VALUE;
+
+	return pending[0].time;
+    }
+
     private void checkIfDue() {
 	long time = privilege.stats.totalTicks;
 
@@ -161,27 +211,34 @@ public final class Interrupt {
 	if (Lib.test(dbgInt))
 	    print();
 
-	if (pending.isEmpty())
+	if (numPending == 0)
 	    return;
 
-	if (((PendingInterrupt) pending.first()).time > time)
+	if (pending[0].time > time)
 	    return;
 
 	Lib.debug(dbgInt, "Invoking interrupt handlers at time = " + time);
 	
-	while (!pending.isEmpty() &&
-	       ((PendingInterrupt) pending.first()).time <= time) {
-	    PendingInterrupt next = (PendingInterrupt) pending.first();
-	    pending.remove(next);
+	while (numPending > 0 && pending[0].time <= time) {
+	    PendingInterrupt next = removeFirst();
 
 	    Lib.assertTrue(next.time <= time);
 
+	    // the handler may schedule more interrupts, so recycle this one
+	    // before calling it
+	    String type = next.type;
+	    Runnable handler = next.handler;
+	    next.type = null;
+	    next.handler = null;
+	    next.nextFree = freeList;
+	    freeList = next;
+
 	    if (privilege.processor != null)
 		privilege.processor.flushPipe();
 
-	    Lib.debug(dbgInt, "  " + next.type);
+	    Lib.debug(dbgInt, "  " + type);
 			
-	    next.handler.run();
+	    handler.run();
 	}
 
 	Lib.debug(dbgInt, "  (end of list)");
@@ -192,8 +249,11 @@ public final class Interrupt {
 			   + ", interrupts " + (enabled ? "on" : "off"));
 	System.out.println("Pending interrupts:");
 
-	for (Iterator i=pending.iterator(); i.hasNext(); ) {
-	    PendingInterrupt toOccur = (PendingInterrupt) i.next();
+	PendingInterrupt[] sorted = Arrays.copyOf(pending, numPending);
+	Arrays.sort(sorted);
+	
+	for (int i=0; i<sorted.length; i++) {
+	    PendingInterrupt toOccur = sorted[i];
 	    System.out.println("  " + toOccur.type +
 			       ", scheduled at " + toOccur.time);
 	}
@@ -201,17 +261,71 @@ public final class Interrupt {
 	System.out.println("  (end of list)");
     }
 
-    private class PendingInterrupt implements Comparable {
-	PendingInterrupt(long time, String type, Runnable handler) {
-	    this.time = time;
-	    this.type = type;
-	    this.handler = handler;
-	    this.id = numPendingInterruptsCreated++;
+    /**
+     * Remove and return the earliest pending interrupt from the heap.
+     */
+    private PendingInterrupt removeFirst() {
+	PendingInterrupt first = pending[0];
+
+	PendingInterrupt last = pending[--numPending];
+	pending[numPending] = null;
+	if (numPending > 0)
+	    siftDown(0, last);
+
+	return first;
+    }
+
+    /**
+     * Place <i>toOccur</i> at heap index <i>i</i> or above, moving later
+     * interrupts down to make room.
+     */
+    private void siftUp(int i, PendingInterrupt toOccur) {
+	while (i > 0) {
+	    int parent = (i-1) / heapArity;
+	    if (pending[parent].compareTo(toOccur) <= 0)
+		break;
+
+	    pending[i] = pending[parent];
+	    i = parent;
 	}
 
-	public int compareTo(Object o) {
-	    PendingInterrupt toOccur = (PendingInterrupt) o;
+	pending[i] = toOccur;
+    }
+
+    /**
+     * Place <i>toOccur</i> at heap index <i>i</i> or below, moving earlier
+     * interrupts up to make room.
+     */
+    private void siftDown(int i, PendingInterrupt toOccur) {
+	while (true) {
+	    int child = i*heapArity + 1;
+	    if (child >= numPending)
+		break;
+
+	    int end = Math.min(child+heapArity, numPending);
+	    int earliest = child;
+	    for (child++; child<end; child++) {
+		if (pending[child].compareTo(pending[earliest]) < 0)
+		    earliest = child;
+	    }
+
+	    if (toOccur.compareTo(pending[earliest]) <= 0)
+		break;
+
+	    pending[i] = pending[earliest];
+	    i = earliest;
+	}
 
+	pending[i] = toOccur;
+    }
+
+    /**
+     * A scheduled interrupt. Fired interrupts are kept on a free list and
+     * reused by <tt>schedule()</tt>, so scheduling does not allocate once the
+     * pool has warmed up.
+     */
+    private class PendingInterrupt implements Comparable<PendingInterrupt> {
+	public int compareTo(PendingInterrupt toOccur) {
 	    // can't return 0 for unequal objects, so check all fields
 	    if (time < toOccur.time)
 		return -1;
@@ -230,6 +344,7 @@ public final class Interrupt {
 	Runnable handler;
 
 	private long id;
+	private PendingInterrupt nextFree;
     }
     
     private long numPendingInterruptsCreated = 0;
@@ -237,7 +352,16 @@ public final class Interrupt {
     private Privilege privilege;
 
     private boolean enabled;
-    private TreeSet<PendingInterrupt> pending;
+
+    /**
+     * The pending interrupts, as a <tt>heapArity</tt>-ary min-heap ordered by
+     * time and then by order of scheduling.
+     */
+    private PendingInterrupt[] pending;
+    private int numPending;
+    private PendingInterrupt freeList = null;
+
+    private static final int heapArity = 4;
 
     private static final char dbgInt = 'i';
 
@@ -249,5 +373,13 @@ public final class Interrupt {
 	public void tick(boolean inKernelMode) {
 	    Interrupt.this.tick(inKernelMode);
 	}
+
+	public void tick(boolean inKernelMode, int numTicks) {
+	    Interrupt.this.tick(inKernelMode, numTicks);
+	}
+
+	public long nextInterruptTime() {
+	    return Interrupt.this.nextInterruptTime();
+	}
     }
 }
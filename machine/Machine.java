@@ -6,6 +6,9 @@ import nachos.security.*;
 import nachos.ag.*;
 
 import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
 
 /**
  * The master class of the simulated machine. Processes command line arguments,
@@ -92,14 +95,34 @@ public final class Machine {
     }
 
     /**
-     * Print stats, and terminate Nachos.
+     * Print stats, and terminate Nachos. If <tt>Stats.csvFile</tt> is set,
+     * also write the scheduling histograms to that file.
      */
     public static void halt() {
 	System.out.print("Machine halting!\n\n");
 	stats.print();
+
+	final String csvFileName = Config.getString("Stats.csvFile", null);
+	if (csvFileName != null) {
+	    privilege.doPrivileged(new Runnable() {
+		    public void run() { writeStatsCSV(csvFileName); }
+		});
+	}
+
 	terminate();
     }
 
+    private static void writeStatsCSV(String fileName) {
+	try {
+	    PrintStream out = new PrintStream(new FileOutputStream(fileName));
+	    stats.printCSV(out);
+	    out.close();
+	}
+	catch (IOException e) {
+	    System.out.println("Unable to write " + fileName + ": " + e);
+	}
+    }
+
     /**
      * Return an array containing all command line arguments.
      *
@@ -46,6 +46,11 @@ public final class Processor {
 	    registers[i] = 0;
 
 	mainMemory = new byte[pageSize * numPhysPages];
+	decodeCache = new Decoded[numPhysPages][];
+
+	jit = Config.getBoolean("Processor.jit", false);
+	if (jit)
+	    blockCache = new BlockTranslator.Block[numPhysPages][];
 
 	if (usingTLB) {
 	    translations = new TranslationEntry[tlbSize];
@@ -89,22 +94,80 @@ public final class Processor {
 
 	registers[regNextPC] = registers[regPC] + 4;
 
+	// the kernel has just loaded the program
+	kernelEntries++;
+
 	Machine.autoGrader().runProcessor(privilege);
 
 	Instruction inst = new Instruction();
+
+	// block translation changes the debug trace, so only use it when
+	// nobody is watching
+	BlockTranslator translator = null;
+	if (jit && !Lib.test(dbgProcessor) && !Lib.test(dbgDisassemble) &&
+	    !Lib.test(dbgFullDisassemble) && !Lib.test(dbgInt))
+	    translator = new BlockTranslator(inst);
+	
+	// the interrupt trace prints every tick, so don't batch them then
+	boolean batching = !Lib.test(dbgInt);
 	
 	while (true) {
+	    int count = 0;
+	    
 	    try {
-		inst.run();
+		// a translated block charges its own ticks
+		if (translator != null && translator.runBlock())
+		    continue;
+
+		/* No interrupt can fall due before the last of these
+		 * instructions, so nothing can observe simulated time until
+		 * then, and the ticks can be charged in one step afterwards.
+		 * Blocks are tried again after every interpreted instruction.
+		 */
+		int limit = 1;
+		if (batching && translator == null)
+		    limit = instructionsUntilInterrupt(Integer.MAX_VALUE);
+
+		do {
+		    count++;
+		    inst.run();
+		} while (count < limit);
 	    }
 	    catch (MipsException e) {
+		// charge the instructions before this one first, in case the
+		// exception handler looks at the time
+		if (count > 1)
+		    privilege.interrupt.tick(false, count-1);
+		count = 1;
+		
 		e.handle();
 	    }
 
-	    privilege.interrupt.tick(false);
+	    privilege.interrupt.tick(false, count);
 	}
     }
 
+    /**
+     * Return the number of user instructions that can run before the next
+     * pending interrupt falls due. The interrupt falls due at the tick after
+     * the last of these instructions, exactly as if each instruction had been
+     * ticked separately.
+     *
+     * @param	max	the largest number to return.
+     * @return	the number of instructions to run, between 1 and
+     *		<tt>max</tt>.
+     */
+    private int instructionsUntilInterrupt(int max) {
+	long now = privilege.stats.totalTicks;
+	long due = privilege.interrupt.nextInterruptTime();
+
+	if (due - now >= (long) max * Stats.UserTick)
+	    return max;
+
+	return (int) Math.max(1, (due - now + Stats.UserTick - 1) /
+			      Stats.UserTick);
+    }
+
     /**
      * Read and return the contents of the specified CPU register.
      *
@@ -175,6 +238,9 @@ public final class Processor {
 	Lib.assertTrue(!usingTLB);
 
 	this.translations = pageTable;
+
+	fetchTLB.flush();
+	dataTLB.flush();
     }
 
     /**
@@ -216,6 +282,9 @@ public final class Processor {
 	Lib.assertTrue(number >= 0 && number < tlbSize);
 
 	translations[number] = new TranslationEntry(entry);
+
+	fetchTLB.flush();
+	dataTLB.flush();
     }
 
     /**
@@ -279,6 +348,34 @@ public final class Processor {
 	delayedLoad(0, 0, 0);
     }
 
+    /**
+     * Discard every predecoded instruction cached for the specified physical
+     * page. Called whenever the contents of the page are replaced wholesale,
+     * for example by <tt>CoffSection.loadPage()</tt>.
+     *
+     * @param	ppn	the physical page whose decoded instructions to drop.
+     */
+    void invalidateDecodeCache(int ppn) {
+	Lib.assertTrue(ppn >= 0 && ppn < numPhysPages);
+
+	decodeCache[ppn] = null;
+	dropBlocks(ppn);
+    }
+
+    /**
+     * Discard every translated block starting in the specified physical page.
+     * If a block is currently running, it stops after the current
+     * instruction.
+     *
+     * @param	ppn	the physical page whose blocks to drop.
+     */
+    private void dropBlocks(int ppn) {
+	if (blockCache != null && blockCache[ppn] != null) {
+	    blockCache[ppn] = null;
+	    blocksDropped = true;
+	}
+    }
+
     /**
      * Translate a virtual address into a physical address, using either a
      * page table or a TLB. Check for alignment, make sure the virtual page is
@@ -286,14 +383,26 @@ public final class Processor {
      * resulting physical page is valid, and then return the resulting physical
      * address.
      *
+     * <p>
+     * Translations that succeed are remembered in the specified micro-TLB, and
+     * later references that hit in it skip the full lookup.
+     *
      * @param	vaddr	the virtual address to translate.
      * @param	size	the size of the memory reference (must be 1, 2, or 4).
      * @param	writing	<tt>true</tt> if the memory reference is a write.
+     * @param	micro	the micro-TLB to consult first.
      * @return		the physical address.
      * @exception	MipsException	if a translation error occurred.
      */
-    private int translate(int vaddr, int size, boolean writing)
-	throws MipsException {
+    private int translate(int vaddr, int size, boolean writing,
+			  MicroTLB micro) throws MipsException {
+	// the fast path never prints, so skip it while tracing
+	if (!tracing) {
+	    int paddr = micro.translate(vaddr, size, writing);
+	    if (paddr != -1)
+		return paddr;
+	}
+	
 	if (Lib.test(dbgProcessor))
 	    System.out.println("\ttranslate vaddr=0x" + Lib.toHexString(vaddr)
 			       + (writing ? ", write" : ", read..."));
@@ -357,6 +466,8 @@ public final class Processor {
 
 	int paddr = (ppn*pageSize) + offset;
 
+	micro.fill(vpn, entry);
+
 	if (Lib.test(dbgProcessor))
 	    System.out.println("\t\tpaddr=0x" + Lib.toHexString(paddr));	
 	return paddr;
@@ -378,7 +489,7 @@ public final class Processor {
 
 	Lib.assertTrue(size==1 || size==2 || size==4);
 	
-	int value = Lib.bytesToInt(mainMemory, translate(vaddr, size, false),
+	int value = Lib.bytesToInt(mainMemory, translate(vaddr, size, false, dataTLB),
 				   size);
 
 	if (Lib.test(dbgProcessor))
@@ -405,9 +516,17 @@ public final class Processor {
 			       + Lib.toHexString(value, size*2));
 
 	Lib.assertTrue(size==1 || size==2 || size==4);
+
+	int paddr = translate(vaddr, size, true, dataTLB);
 	
-	Lib.bytesFromInt(mainMemory, translate(vaddr, size, true), size,
-			 value);
+	Lib.bytesFromInt(mainMemory, paddr, size, value);
+
+	// drop the decoded instruction overlapping this word, if any
+	Decoded[] page = decodeCache[paddr / pageSize];
+	if (page != null)
+	    page[(paddr % pageSize) >> 2] = null;
+
+	dropBlocks(paddr / pageSize);
     }
 
     /**
@@ -547,8 +666,17 @@ public final class Processor {
      */
     private TranslationEntry[] translations;
 
+    /** Caches recent translations used to fetch instructions. */
+    private MicroTLB fetchTLB = new MicroTLB();
+    /** Caches recent translations used by loads and stores. */
+    private MicroTLB dataTLB = new MicroTLB();
+    /** <tt>true</tt> if every address translation should be traced. */
+    private boolean tracing = Lib.test(dbgProcessor);
+
     /** Size of a page, in bytes. */
     public static final int pageSize = 0x400;
+    /** Log base 2 of <tt>pageSize</tt>. */
+    private static final int pageShift = 10;
     /** Number of pages in a 32-bit address space. */
     public static final int maxPages = (int) (0x100000000L / pageSize);
     /** Number of physical pages in memory. */
@@ -556,16 +684,44 @@ public final class Processor {
     /** Main memory for user programs. */
     private byte[] mainMemory;
 
+    /**
+     * Predecoded instructions, indexed by physical page number and then by
+     * word offset within the page. A page's array is allocated the first
+     * time an instruction is fetched from it.
+     */
+    private Decoded[][] decodeCache;
+
+    /** <tt>true</tt> if basic blocks are translated before being run. */
+    private boolean jit;
+    /**
+     * Translated blocks, indexed by physical page number and then by the word
+     * offset of the first instruction in the block. <tt>null</tt> unless
+     * <tt>jit</tt> is set.
+     */
+    private BlockTranslator.Block[][] blockCache = null;
+    /** Set whenever <tt>dropBlocks()</tt> discards a page of blocks. */
+    private boolean blocksDropped = false;
+    /**
+     * Incremented whenever the kernel may have run: on every exception and
+     * interrupt, and when a program starts. User stores drop the blocks they
+     * overwrite, but the kernel can write memory through
+     * <tt>getMemory()</tt> unseen, so a block is checked against memory once
+     * after each of these, rather than each time it runs.
+     */
+    private int kernelEntries = 0;
+
     /** The kernel exception handler, called on every user exception. */
     private Runnable exceptionHandler = null;
 
     private static final char dbgProcessor = 'p';
     private static final char dbgDisassemble = 'm';
     private static final char dbgFullDisassemble = 'M';
+    private static final char dbgInt = 'i';
 
     private class ProcessorPrivilege implements Privilege.ProcessorPrivilege {
 	public void flushPipe() {
 	    finishLoad();
+	    kernelEntries++;
 	}
     }
 
@@ -593,6 +749,7 @@ public final class Processor {
 		System.out.println("exception: " + exceptionNames[cause]);
 
 	    finishLoad();
+	    kernelEntries++;
 
 	    Lib.assertTrue(exceptionHandler != null);
 
@@ -626,78 +783,63 @@ public final class Processor {
 		System.out.print("PC=0x" + Lib.toHexString(registers[regPC])
 				 + "\t");
 
-	    value = readMem(registers[regPC], 4);
+	    paddr = translate(registers[regPC], 4, false, fetchTLB);
+	    value = Lib.bytesToInt(mainMemory, paddr, 4);
 	}
 	
 	private void decode() {
-	    op = Lib.extract(value, 26, 6);
-	    rs = Lib.extract(value, 21, 5);
-	    rt = Lib.extract(value, 16, 5);
-	    rd = Lib.extract(value, 11, 5);
-	    sh = Lib.extract(value, 6, 5);
-	    func = Lib.extract(value, 0, 6);
-	    target = Lib.extract(value, 0, 26);
-	    imm = Lib.extend(value, 0, 16);
+	    // the kernel can write memory directly through getMemory(), so a
+	    // cached entry is only trusted if it still matches the fetched word
+	    Decoded[] page = decodeCache[paddr / pageSize];
+	    if (page == null)
+		page = decodeCache[paddr / pageSize] = new Decoded[pageSize/4];
 
-	    Mips info;
-	    switch (op) {
-	    case 0:
-		info = Mips.specialtable[func];
-		break;
-	    case 1:
-		info = Mips.regimmtable[rt];
-		break;
-	    default:
-		info = Mips.optable[op];
-		break;
-	    }
+	    Decoded info = page[(paddr % pageSize) >> 2];
+	    if (info == null || info.value != value)
+		info = page[(paddr % pageSize) >> 2] = new Decoded(value);
+
+	    load(info);
+	}
+
+	/**
+	 * Set up this instruction to execute the specified predecoded
+	 * instruction against the current contents of the register file.
+	 *
+	 * @param	info	the predecoded instruction.
+	 */
+	private void load(Decoded info) {
+	    op = info.op;
+	    rs = info.rs;
+	    rt = info.rt;
+	    rd = info.rd;
+	    sh = info.sh;
+	    func = info.func;
+	    target = info.target;
+	    imm = info.imm;
 
 	    operation = info.operation;
 	    name = info.name;
 	    format = info.format;
 	    flags = info.flags;
+	    size = info.size;
+	    dstReg = info.dstReg;
 
 	    mask = 0xFFFFFFFF;	
 	    branch = true;
-	
-	    // get memory access size
-	    if (test(Mips.SIZEB))
-		size = 1;
-	    else if (test(Mips.SIZEH))
-		size = 2;
-	    else if (test(Mips.SIZEW))
-		size = 4;
-	    else
-		size = 0;
 
 	    // get nextPC
 	    nextPC = registers[regNextPC]+4;
 
-	    // get dstReg
-	    if (test(Mips.DSTRA))
-		dstReg = regRA;
-	    else if (format == Mips.IFMT)
-		dstReg = rt;
-	    else if (format == Mips.RFMT)
-		dstReg = rd;
-	    else
-		dstReg = -1;
-
 	    // get jtarget
 	    if (format == Mips.RFMT)
 		jtarget = registers[rs];
 	    else if (format == Mips.IFMT)
-		jtarget = registers[regNextPC] + (imm<<2);
+		jtarget = registers[regNextPC] + info.branchOffset;
 	    else if (format == Mips.JFMT)
 		jtarget = (registers[regNextPC]&0xF0000000) | (target<<2);
 	    else
 		jtarget = -1;
 
-	    // get imm
-	    if (test(Mips.UNSIGNED)) {
-		imm &= 0xFFFF;
-	    }
-
 	    // get addr
 	    addr = registers[rs] + imm;
 
@@ -1052,7 +1194,7 @@ public final class Processor {
 	}
     
 	// state used to execute a single instruction
-	int value, op, rs, rt, rd, sh, func, target, imm;
+	int paddr, value, op, rs, rt, rd, sh, func, target, imm;
 	int operation, format, flags;
 	String name;
 
@@ -1063,6 +1205,473 @@ public final class Processor {
 	boolean branch;
     }
 
+    /**
+     * A small direct-mapped cache of recently used translation entries,
+     * indexed by the low bits of the virtual page number. It sits in front of
+     * the page table or TLB, so that the common case of repeatedly touching
+     * the same few pages does not go through <tt>translate()</tt>'s full
+     * lookup.
+     *
+     * <p>
+     * Only the translation entry is remembered, not a copy of it, so that the
+     * kernel's changes to a page table entry take effect immediately. Both
+     * micro-TLBs are flushed whenever the page table or a TLB entry is
+     * replaced.
+     */
+    private final class MicroTLB {
+	MicroTLB() {
+	    flush();
+	}
+
+	/**
+	 * Forget every cached translation.
+	 */
+	void flush() {
+	    for (int i=0; i<numSlots; i++) {
+		vpns[i] = -1;
+		entries[i] = null;
+	    }
+	}
+
+	/**
+	 * Remember that the specified entry translates the specified virtual
+	 * page.
+	 */
+	void fill(int vpn, TranslationEntry entry) {
+	    vpns[vpn & (numSlots-1)] = vpn;
+	    entries[vpn & (numSlots-1)] = entry;
+	}
+
+	/**
+	 * Translate the specified address if it hits in this micro-TLB, and
+	 * the reference would succeed. The used and dirty bits are updated
+	 * exactly as by a full translation.
+	 *
+	 * @return	the physical address, or <tt>-1</tt> if the full
+	 *		<tt>translate()</tt> must be used instead.
+	 */
+	int translate(int vaddr, int size, boolean writing) {
+	    if ((vaddr & (size-1)) != 0)
+		return -1;
+
+	    int vpn = vaddr >>> pageShift;
+	    int slot = vpn & (numSlots-1);
+	    TranslationEntry entry = entries[slot];
+
+	    if (entry == null || vpns[slot] != vpn || !entry.valid)
+		return -1;
+
+	    // the kernel owns the page table, so it may have replaced the
+	    // entry; TLB entries can only be replaced by writeTLBEntry()
+	    if (!usingTLB && translations[vpn] != entry)
+		return -1;
+
+	    int ppn = entry.ppn;
+	    if ((entry.readOnly && writing) || ppn < 0 || ppn >= numPhysPages)
+		return -1;
+
+	    entry.used = true;
+	    if (writing)
+		entry.dirty = true;
+
+	    return (ppn*pageSize) + (vaddr & (pageSize-1));
+	}
+
+	private static final int numSlots = 16;
+
+	private int[] vpns = new int[numSlots];
+	private TranslationEntry[] entries = new TranslationEntry[numSlots];
+    }
+
+    /**
+     * Runs user code a basic block at a time. A block is a straight-line run
+     * of instructions within one physical page, ending with the delay slot of
+     * the first branch or jump, or with the first instruction that always
+     * traps. Each instruction of a block is translated once into an
+     * <tt>Op</tt>; common ALU instructions get a dedicated <tt>Op</tt> that
+     * works directly on the register file, and everything else falls back to
+     * the interpreter's <tt>execute()</tt> and <tt>writeBack()</tt>.
+     *
+     * <p>
+     * A block is only run as far as the next pending interrupt, and the user
+     * ticks for the instructions it ran are charged in a single step. Since no
+     * interrupt can fall due inside that window, interrupt timing is exactly
+     * the same as when interpreting. If an instruction traps, the ticks for
+     * the instructions before it are charged and the exception is passed on
+     * to <tt>run()</tt>, just as if the instruction had been interpreted.
+     */
+    private final class BlockTranslator {
+	BlockTranslator(Instruction inst) {
+	    this.inst = inst;
+	}
+
+	/**
+	 * Run the block starting at the current PC, translating it first if
+	 * necessary.
+	 *
+	 * @return	<tt>true</tt> if a block was run and its ticks charged;
+	 *		<tt>false</tt> if the current instruction must be
+	 *		interpreted instead.
+	 * @exception	MipsException	if an instruction in the block trapped.
+	 */
+	boolean runBlock() throws MipsException {
+	    // blocks assume sequential execution, so we can't enter one in a
+	    // delay slot
+	    if (registers[regNextPC] != registers[regPC]+4)
+		return false;
+
+	    int paddr = translate(registers[regPC], 4, false, fetchTLB);
+	    int ppn = paddr / pageSize;
+	    int index = (paddr % pageSize) >> 2;
+
+	    Block[] page = blockCache[ppn];
+	    if (page == null)
+		page = blockCache[ppn] = new Block[pageSize/4];
+
+	    Block block = page[index];
+	    if (block == null)
+		block = page[index] = new Block(paddr);
+	    else if (block.checked != kernelEntries) {
+		if (block.matches(paddr))
+		    block.checked = kernelEntries;
+		else
+		    block = page[index] = new Block(paddr);
+	    }
+
+	    int limit = instructionsUntilInterrupt(block.ops.length);
+
+	    blocksDropped = false;
+
+	    int count = 0;
+	    try {
+		while (count < limit) {
+		    block.ops[count++].run();
+
+		    // a store may have overwritten this block
+		    if (blocksDropped)
+			break;
+		}
+	    }
+	    catch (MipsException e) {
+		// the trapping instruction is charged by run()
+		if (count > 1)
+		    privilege.interrupt.tick(false, count-1);
+		throw e;
+	    }
+
+	    privilege.interrupt.tick(false, count);
+	    return true;
+	}
+
+	private final Instruction inst;
+
+	/** A translated basic block. */
+	private final class Block {
+	    Block(int paddr) {
+		int first = paddr / 4;
+		int last = ((paddr / pageSize) + 1) * pageSize / 4;
+		int length = 0;
+
+		while (first+length < last) {
+		    Decoded info = decodeAt((first+length) * 4);
+
+		    if (Lib.test(Mips.BRANCH, info.flags)) {
+			length++;
+
+			// include the delay slot, unless it too is special
+			if (first+length < last &&
+			    !endsBlock(decodeAt((first+length) * 4)))
+			    length++;
+			break;
+		    }
+
+		    length++;
+		    if (endsBlock(info))
+			break;
+		}
+
+		checked = kernelEntries;
+		words = new int[length];
+		ops = new Op[length];
+		for (int i=0; i<length; i++) {
+		    Decoded info = decodeAt((first+i) * 4);
+		    words[i] = info.value;
+		    ops[i] = translateOp(info);
+		}
+	    }
+
+	    /**
+	     * Test whether memory still holds the instructions this block was
+	     * translated from. The kernel may have rewritten them through
+	     * <tt>getMemory()</tt>, but only if it has run since
+	     * <tt>checked</tt>.
+	     */
+	    boolean matches(int paddr) {
+		for (int i=0; i<words.length; i++) {
+		    if (Lib.bytesToInt(mainMemory, paddr + i*4, 4) != words[i])
+			return false;
+		}
+		return true;
+	    }
+
+	    /** The value of <tt>kernelEntries</tt> when last checked. */
+	    int checked;
+	    final int[] words;
+	    final Op[] ops;
+	}
+
+	private Decoded decodeAt(int paddr) {
+	    int value = Lib.bytesToInt(mainMemory, paddr, 4);
+	    
+	    Decoded[] page = decodeCache[paddr / pageSize];
+	    if (page == null)
+		page = decodeCache[paddr / pageSize] = new Decoded[pageSize/4];
+
+	    Decoded info = page[(paddr % pageSize) >> 2];
+	    if (info == null || info.value != value)
+		info = page[(paddr % pageSize) >> 2] = new Decoded(value);
+
+	    return info;
+	}
+
+	private boolean endsBlock(Decoded info) {
+	    switch (info.operation) {
+	    case Mips.SYSCALL:
+	    case Mips.UNIMPL:
+	    case Mips.INVALID:
+		return true;
+	    default:
+		return Lib.test(Mips.BRANCH, info.flags);
+	    }
+	}
+
+	private Op translateOp(final Decoded info) {
+	    final int rs = info.rs, rt = info.rt, dstReg = info.dstReg;
+	    final int sh = info.sh, imm = info.imm;
+	    final boolean srcImm = Lib.test(Mips.SRC2IMM, info.flags);
+	    final boolean srcSh = Lib.test(Mips.SRC1SH, info.flags);
+	    final boolean unsigned = Lib.test(Mips.UNSIGNED, info.flags);
+
+	    // signed arithmetic traps on overflow, so leave it to the
+	    // interpreter
+	    if (Lib.test(Mips.OVERFLOW, info.flags))
+		return new InterpretedOp(info);
+
+	    switch (info.operation) {
+	    case Mips.ADD:
+		if (srcImm)
+		    return new Op(dstReg) {
+			    int compute() { return registers[rs] + imm; }
+			};
+		else
+		    return new Op(dstReg) {
+			    int compute() { return registers[rs] + registers[rt]; }
+			};
+	    case Mips.SUB:
+		return new Op(dstReg) {
+			int compute() { return registers[rs] - registers[rt]; }
+		    };
+	    case Mips.AND:
+		if (srcImm)
+		    return new Op(dstReg) {
+			    int compute() { return registers[rs] & imm; }
+			};
+		else
+		    return new Op(dstReg) {
+			    int compute() { return registers[rs] & registers[rt]; }
+			};
+	    case Mips.OR:
+		if (srcImm)
+		    return new Op(dstReg) {
+			    int compute() { return registers[rs] | imm; }
+			};
+		else
+		    return new Op(dstReg) {
+			    int compute() { return registers[rs] | registers[rt]; }
+			};
+	    case Mips.XOR:
+		if (srcImm)
+		    return new Op(dstReg) {
+			    int compute() { return registers[rs] ^ imm; }
+			};
+		else
+		    return new Op(dstReg) {
+			    int compute() { return registers[rs] ^ registers[rt]; }
+			};
+	    case Mips.NOR:
+		return new Op(dstReg) {
+			int compute() { return ~(registers[rs] | registers[rt]); }
+		    };
+	    case Mips.LUI:
+		return new Op(dstReg) {
+			int compute() { return imm << 16; }
+		    };
+	    case Mips.SLT:
+		if (unsigned)
+		    return new Op(dstReg) {
+			    int compute() {
+				int src2 = srcImm ? imm : registers[rt];
+				return ((registers[rs]^0x80000000) <
+					(src2^0x80000000)) ? 1 : 0;
+			    }
+			};
+		else
+		    return new Op(dstReg) {
+			    int compute() {
+				int src2 = srcImm ? imm : registers[rt];
+				return (registers[rs] < src2) ? 1 : 0;
+			    }
+			};
+	    case Mips.SLL:
+		return new Op(dstReg) {
+			int compute() {
+			    int amount = srcSh ? sh : registers[rs];
+			    return registers[rt] << (amount&0x1F);
+			}
+		    };
+	    case Mips.SRA:
+		return new Op(dstReg) {
+			int compute() {
+			    int amount = srcSh ? sh : registers[rs];
+			    return registers[rt] >> (amount&0x1F);
+			}
+		    };
+	    case Mips.SRL:
+		// the interpreter shifts the sign-extended 64-bit value, so
+		// we must too
+		return new Op(dstReg) {
+			int compute() {
+			    int amount = srcSh ? sh : registers[rs];
+			    return (int) (((long) registers[rt]) >>> (amount&0x1F));
+			}
+		    };
+	    default:
+		return new InterpretedOp(info);
+	    }
+	}
+
+	/**
+	 * A translated instruction that writes a register computed from the
+	 * register file, and cannot trap.
+	 */
+	private class Op {
+	    Op(int dstReg) {
+		this.dstReg = dstReg;
+	    }
+
+	    /**
+	     * Run this instruction: compute the result from the sources, then
+	     * complete any delayed load, write the result and advance the PC.
+	     */
+	    void run() throws MipsException {
+		int dst = compute();
+
+		finishLoad();
+
+		if (dstReg != 0)
+		    registers[dstReg] = dst;
+
+		advancePC(registers[regNextPC]+4);
+	    }
+
+	    int compute() {
+		Lib.assertNotReached();
+		return 0;
+	    }
+
+	    final int dstReg;
+	}
+
+	/** A translated instruction that is run by the interpreter. */
+	private class InterpretedOp extends Op {
+	    InterpretedOp(Decoded info) {
+		super(-1);
+		this.info = info;
+	    }
+
+	    void run() throws MipsException {
+		inst.load(info);
+		inst.execute();
+		inst.writeBack();
+	    }
+
+	    private final Decoded info;
+	}
+    }
+
+    /**
+     * The fields of an instruction that depend only on the instruction word,
+     * and not on the register file. These are computed once per word and
+     * cached in <tt>decodeCache</tt>, so that hot loops skip decoding.
+     */
+    private static final class Decoded {
+	Decoded(int value) {
+	    this.value = value;
+
+	    op = Lib.extract(value, 26, 6);
+	    rs = Lib.extract(value, 21, 5);
+	    rt = Lib.extract(value, 16, 5);
+	    rd = Lib.extract(value, 11, 5);
+	    sh = Lib.extract(value, 6, 5);
+	    func = Lib.extract(value, 0, 6);
+	    target = Lib.extract(value, 0, 26);
+	    imm = Lib.extend(value, 0, 16);
+
+	    Mips info;
+	    switch (op) {
+	    case 0:
+		info = Mips.specialtable[func];
+		break;
+	    case 1:
+		info = Mips.regimmtable[rt];
+		break;
+	    default:
+		info = Mips.optable[op];
+		break;
+	    }
+
+	    operation = info.operation;
+	    name = info.name;
+	    format = info.format;
+	    flags = info.flags;
+
+	    // get memory access size
+	    if (Lib.test(Mips.SIZEB, flags))
+		size = 1;
+	    else if (Lib.test(Mips.SIZEH, flags))
+		size = 2;
+	    else if (Lib.test(Mips.SIZEW, flags))
+		size = 4;
+	    else
+		size = 0;
+
+	    // get dstReg
+	    if (Lib.test(Mips.DSTRA, flags))
+		dstReg = regRA;
+	    else if (format == Mips.IFMT)
+		dstReg = rt;
+	    else if (format == Mips.RFMT)
+		dstReg = rd;
+	    else
+		dstReg = -1;
+
+	    // branch offsets use the signed immediate
+	    branchOffset = imm<<2;
+
+	    // get imm
+	    if (Lib.test(Mips.UNSIGNED, flags)) {
+		imm &= 0xFFFF;
+	    }
+	}
+
+	final int value, op, rs, rt, rd, sh, func, target;
+	int imm;
+	final int operation, format, flags;
+	final String name;
+
+	final int size, dstReg, branchOffset;
+    }
+
     private static class Mips {
 	Mips() {
 	}
@@ -4,6 +4,8 @@ package nachos.machine;
 
 import nachos.machine.*;
 
+import java.io.PrintStream;
+
 /**
  * An object that maintains Nachos runtime statistics.
  */
@@ -29,6 +31,27 @@ public final class Stats {
 			   + ", TLB misses " + numTLBMisses);
 	System.out.println("Network I/O: received " + numPacketsReceived
 			   + ", sent " + numPacketsSent);
+	System.out.println("TCB pool: hits " + numTCBPoolHits
+			   + ", misses " + numTCBPoolMisses);
+	System.out.println("Context switches: voluntary "
+			   + numVoluntarySwitches
+			   + ", involuntary " + numInvoluntarySwitches);
+	readyTicks.print();
+	runTicks.print();
+	numReadyThreads.print();
+    }
+
+    /**
+     * Print out the scheduling histograms in this object as comma-separated
+     * values, with a header line.
+     *
+     * @param	out	the stream to print to.
+     */
+    public void printCSV(PrintStream out) {
+	out.println("histogram,bucket,count");
+	readyTicks.printCSV(out);
+	runTicks.printCSV(out);
+	numReadyThreads.printCSV(out);
     }
 
     /**
@@ -61,6 +84,27 @@ public final class Stats {
     public int numPacketsSent = 0;
     /** The total number of packets Nachos has received from the network. */
     public int numPacketsReceived = 0;
+    /** The total number of TCBs started on a pooled Java thread. */
+    public int numTCBPoolHits = 0;
+    /** The total number of TCBs that needed a new Java thread. */
+    public int numTCBPoolMisses = 0;
+    /**
+     * The total number of times a thread gave up the processor because it
+     * blocked or finished.
+     */
+    public int numVoluntarySwitches = 0;
+    /**
+     * The total number of times a thread gave up the processor while it was
+     * still ready to run.
+     */
+    public int numInvoluntarySwitches = 0;
+
+    /** How long each thread waited to run after it became ready. */
+    public Histogram readyTicks = new Histogram("Ready wait (ticks)");
+    /** How long each thread ran for before giving up the processor. */
+    public Histogram runTicks = new Histogram("Run slice (ticks)");
+    /** How many threads were ready to run at each context switch. */
+    public Histogram numReadyThreads = new Histogram("Ready threads");
 
     /**
      * The amount to advance simulated time after each user instructions is
@@ -5,7 +5,15 @@ package nachos.machine;
 import nachos.security.*;
 import nachos.threads.KThread;
 
-import java.util.Vector;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.locks.LockSupport;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Method;
 import java.security.PrivilegedAction;
 
 /**
@@ -21,6 +29,31 @@ import java.security.PrivilegedAction;
  * <p>
  * Do not use the <i>synchronized</i> keyword <b>anywhere</b> in your code.
  * It's against the rules, <i>and</i> it can easily deadlock nachos.
+ *
+ * <p>
+ * If the <tt>nachos.conf</tt> key <tt>TCB.virtualThreads</tt> is
+ * <tt>true</tt>, each TCB runs on a JVM virtual thread instead, and TCBs hand
+ * the processor to each other with <tt>LockSupport.park()</tt> and
+ * <tt>unpark()</tt> rather than with a monitor. This makes context switches
+ * cheaper and raises the thread limit to <tt>maxVirtualThreads</tt>. On JVMs
+ * without virtual threads, ordinary threads are used with the same hand-off,
+ * and the limit stays at <tt>maxThreads</tt>.
+ *
+ * <p>
+ * If <tt>TCB.continuations</tt> is <tt>true</tt>, no Java thread is created
+ * per TCB at all. Every TCB is a <tt>jdk.internal.vm.Continuation</tt> run by
+ * the thread that started the first TCB, and a context switch just yields one
+ * continuation and mounts the next, without waking any other Java thread. The
+ * JVM must be started with
+ * <tt>--add-exports java.base/jdk.internal.vm=ALL-UNNAMED</tt>; otherwise
+ * virtual threads are used instead. Doomed TCBs are simply never resumed, so
+ * their <tt>finally</tt> blocks do not run.
+ *
+ * <p>
+ * Otherwise, the Java thread of a destroyed TCB is kept in a pool of up to
+ * <tt>TCB.poolSize</tt> idle threads, and <tt>start(Runnable)</tt> reuses a
+ * pooled thread rather than creating a new one whenever it can. Pool hits
+ * and misses are counted in <tt>Stats</tt>.
  */
 public final class TCB {
     /**
@@ -40,6 +73,30 @@ public final class TCB {
     public static void givePrivilege(Privilege privilege) {
 	TCB.privilege = privilege;
 	privilege.tcb = new TCBPrivilege();
+
+	virtualThreads = Config.getBoolean("TCB.virtualThreads", false);
+	if (Config.getBoolean("TCB.continuations", false)) {
+	    continuations = findContinuations();
+	    virtualThreads |= !continuations;
+	}
+	if (virtualThreads)
+	    virtualThreadBuilder = findVirtualThreadBuilder();
+
+	poolSize = Config.getInteger("TCB.poolSize", 0);
+	Lib.assertTrue(poolSize >= 0);
+    }
+
+    /**
+     * Return the maximum number of started, non-destroyed TCBs, which depends
+     * on whether virtual threads or continuations are in use. If they were
+     * requested but this JVM does not have them, TCBs run on platform threads
+     * and get the platform thread limit.
+     *
+     * @return	the maximum number of TCBs.
+     */
+    public static int getMaxThreads() {
+	return (virtualThreadBuilder != null || continuations) ?
+	    maxVirtualThreads : maxThreads;
     }
     
     /**
@@ -66,7 +123,7 @@ public final class TCB {
 	/* Make sure there aren't too many running TCBs already. This
 	 * limitation exists in an effort to prevent wild thread usage.
 	 */
-	Lib.assertTrue(runningThreads.size() < maxThreads);
+	Lib.assertTrue(runningThreads.size() < getMaxThreads());
 
 	isFirstTCB = (currentTCB == null);
 
@@ -85,29 +142,87 @@ public final class TCB {
 
 	this.target = target;
 
-	if (!isFirstTCB) {
-	    /* If this is not the first TCB, we have to make a new Java thread
-	     * to run it. Creating Java threads is a privileged operation.
+	if (continuations) {
+	    /* Every TCB shares the Java thread that started the first one. A
+	     * new TCB's continuation has not been mounted yet, so it is
+	     * already in the state that the other backends have to ping-pong
+	     * to reach: ready to be switched to.
 	     */
-	    tcbTarget = new Runnable() {
+	    javaThread = isFirstTCB ? Thread.currentThread() :
+		currentTCB.javaThread;
+	    continuation = newContinuation(new Runnable() {
 		    public void run() { threadroot(); }
-		};
-
-	    privilege.doPrivileged(new Runnable() {
-		    public void run() { javaThread = new Thread(tcbTarget); }
 		});
 
-	    /* The Java thread hasn't yet started, but we need to get it
-	     * blocking in yield(). We do this by temporarily turning off the
-	     * current TCB, starting the new Java thread, and waiting for it
-	     * to wake us up from threadroot(). Once the new TCB wakes us up,
-	     * it's safe to context switch to the new TCB.
+	    if (isFirstTCB) {
+		/* Run whichever TCB was switched to last. Only exit() gets us
+		 * out of here.
+		 */
+		nextTCB = this;
+		while (true) {
+		    TCB tcb = nextTCB;
+		    Lib.assertTrue(tcb != null);
+		    nextTCB = null;
+		    invokeContinuation(runContinuation, tcb.continuation);
+		}
+	    }
+	}
+	else if (!isFirstTCB) {
+	    /* If this is not the first TCB, we need a Java thread to run it.
+	     * If the pool has one left over from a destroyed TCB, we take it;
+	     * otherwise we make a new one. Creating Java threads is a
+	     * privileged operation.
+	     */
+	    host = PooledThread.take();
+
+	    if (host != null) {
+		privilege.stats.numTCBPoolHits++;
+		javaThread = host.thread;
+	    }
+	    else {
+		privilege.stats.numTCBPoolMisses++;
+
+		tcbTarget = new Runnable() {
+			public void run() { hostThreadRoot(); }
+		    };
+
+		privilege.doPrivileged(new Runnable() {
+			public void run() { javaThread = newThread(tcbTarget); }
+		    });
+
+		host = new PooledThread(javaThread);
+	    }
+
+	    /* The Java thread isn't running our threadroot() yet, but we need
+	     * to get it blocking in yield(). We do this by temporarily turning
+	     * off the current TCB, starting the new Java thread (or handing
+	     * this TCB to the pooled one), and waiting for it to wake us up
+	     * from threadroot(). Once the new TCB wakes us up, it's safe to
+	     * context switch to the new TCB.
 	     */
 	    currentTCB.running = false;
-	    
-	    this.javaThread.start();
+
+	    if (tcbTarget != null)
+		this.javaThread.start();
+	    else
+		host.assign(this);
 	    currentTCB.waitForInterrupt();
 	}
+	else if (virtualThreads) {
+	    /* This is the first TCB, but it runs on a virtual thread like all
+	     * the others, so that the carrier thread (created here, by a
+	     * non-Nachos thread) is never left idle long enough to retire.
+	     * The current Java thread has nothing more to do.
+	     */
+	    javaThread = newThread(new Runnable() {
+		    public void run() { threadroot(); }
+		});
+
+	    javaThread.start();
+
+	    while (true)
+		LockSupport.park(this);
+	}
 	else {
 	    /* This is the first TCB, so we don't need to make a new Java
 	     * thread to run it; we just steal the current Java thread.
@@ -157,6 +272,14 @@ public final class TCB {
 
 	TCB previous = currentTCB;
 	previous.running = false;
+
+	if (continuations) {
+	    nextTCB = this;
+	    invokeContinuation(yieldContinuation, continuationScope);
+	    Lib.assertTrue(!previous.done);
+	    currentTCB = previous;
+	    return;
+	}
 	
 	this.interrupt();
 	previous.yield();
@@ -181,6 +304,17 @@ public final class TCB {
 	toBeDestroyed = null;
 
 	this.done = true;
+
+	if (continuations) {
+	    /* A suspended continuation holds nothing but its own stack, so
+	     * there is nothing to unwind. Just forget it.
+	     */
+	    continuation = null;
+	    runningThreads.remove(this);
+	    javaThread = null;
+	    return;
+	}
+
 	currentTCB.running = false;
 
 	this.interrupt();
@@ -207,11 +341,147 @@ public final class TCB {
 		Thread.currentThread() == currentTCB.javaThread);
     }
 
+    /**
+     * Create, but do not start, the Java thread for a new TCB. Must be called
+     * with privilege.
+     */
+    private static Thread newThread(Runnable target) {
+	if (virtualThreadBuilder != null) {
+	    try {
+		return (Thread) unstartedMethod.invoke(virtualThreadBuilder,
+						       target);
+	    }
+	    catch (Exception e) {
+		Lib.assertNotReached("could not create virtual thread: " + e);
+	    }
+	}
+
+	return new Thread(target);
+    }
+
+    /**
+     * Look up the JVM's virtual thread builder. Reflection keeps this class
+     * loadable on JVMs that predate virtual threads.
+     *
+     * @return	a <tt>Thread.Builder</tt> for virtual threads, or
+     *		<tt>null</tt> if this JVM has none.
+     */
+    private static Object findVirtualThreadBuilder() {
+	try {
+	    Class<?> clsBuilder = Class.forName("java.lang.Thread$Builder");
+	    unstartedMethod = clsBuilder.getMethod("unstarted", Runnable.class);
+
+	    /* Only one TCB runs at a time, so one carrier thread is enough.
+	     * It must also be the only one: carriers are created by whichever
+	     * thread happens to submit work, and Nachos threads lack the
+	     * privilege to create threads.
+	     */
+	    if (System.getProperty(parallelismKey) == null)
+		System.setProperty(parallelismKey, "1");
+	    if (System.getProperty(maxPoolSizeKey) == null)
+		System.setProperty(maxPoolSizeKey, "1");
+
+	    return Thread.class.getMethod("ofVirtual").invoke(null);
+	}
+	catch (Exception e) {
+	    Lib.debug(dbgTCB, "virtual threads unavailable, using platform threads");
+	    return null;
+	}
+    }
+
+    /**
+     * Look up <tt>jdk.internal.vm.Continuation</tt>, and make sure this class
+     * is allowed to use it. The method handles are bound here, while we are
+     * still privileged; resolving them lazily from a Nachos thread would need
+     * privilege.
+     *
+     * @return	<tt>true</tt> if continuations are available.
+     */
+    private static boolean findContinuations() {
+	try {
+	    Class<?> clsScope =
+		Class.forName("jdk.internal.vm.ContinuationScope");
+	    Class<?> clsContinuation =
+		Class.forName("jdk.internal.vm.Continuation");
+
+	    MethodHandles.Lookup lookup = MethodHandles.lookup();
+	    MethodType voidType = MethodType.methodType(void.class);
+
+	    continuationScope = lookup.findConstructor(clsScope,
+		voidType.appendParameterTypes(String.class)).invoke("nachos");
+	    newContinuation = lookup.findConstructor(clsContinuation,
+		voidType.appendParameterTypes(clsScope, Runnable.class))
+		.asType(MethodType.methodType(Object.class, Object.class,
+					      Runnable.class));
+	    runContinuation = lookup.findVirtual(clsContinuation, "run",
+		voidType).asType(voidType.appendParameterTypes(Object.class));
+	    yieldContinuation = lookup.findStatic(clsContinuation, "yield",
+		MethodType.methodType(boolean.class, clsScope))
+		.asType(voidType.appendParameterTypes(Object.class));
+
+	    return true;
+	}
+	catch (Throwable e) {
+	    Lib.debug(dbgTCB, "continuations unavailable (" + e +
+		      "), using virtual threads");
+	    return false;
+	}
+    }
+
+    /**
+     * Create, but do not mount, a continuation that runs the specified
+     * target.
+     */
+    private static Object newContinuation(Runnable target) {
+	try {
+	    return (Object) newContinuation.invokeExact(continuationScope,
+							target);
+	}
+	catch (Throwable e) {
+	    Lib.assertNotReached("could not create continuation: " + e);
+	    return null;
+	}
+    }
+
+    /**
+     * Invoke <tt>run()</tt> on the specified continuation, or
+     * <tt>yield()</tt> from the current one. A continuation cannot yield
+     * while it holds a monitor, so a TCB that context switches inside a
+     * <i>synchronized</i> block ends up here with an exception.
+     */
+    private static void invokeContinuation(MethodHandle method,
+					   Object argument) {
+	try {
+	    method.invokeExact(argument);
+	}
+	catch (RuntimeException e) {
+	    throw e;
+	}
+	catch (Error e) {
+	    throw e;
+	}
+	catch (Throwable e) {
+	    Lib.assertNotReached("continuation failed: " + e);
+	}
+    }
+
+    /**
+     * The body of each Java thread created by <tt>start(Runnable)</tt>. Runs
+     * this TCB, and then every TCB that <tt>start(Runnable)</tt> hands the
+     * thread while it sits in the pool.
+     */
+    private void hostThreadRoot() {
+	PooledThread host = this.host;
+
+	for (TCB tcb = this; tcb != null; tcb = host.await())
+	    tcb.threadroot();
+    }
+
     private void threadroot() {
 	// this should be running the current thread
 	Lib.assertTrue(javaThread == Thread.currentThread());
 
-	if (!isFirstTCB) {
+	if (!isFirstTCB && !continuations) {
 	    /* start() is waiting for us to wake it up, signalling that it's OK
 	     * to context switch to us. We leave the running flag false so that
 	     * we'll still run if a context switch happens before we go to
@@ -244,7 +514,7 @@ public final class TCB {
 		privilege.exit(1);
 	    }
 
-	    runningThreads.removeElement(this);
+	    runningThreads.remove(this);
 	    if (runningThreads.isEmpty())
 		privilege.exit(0);
 	}
@@ -252,7 +522,7 @@ public final class TCB {
 	    System.out.print("\n");
 	    e.printStackTrace();
 
-	    runningThreads.removeElement(this);
+	    runningThreads.remove(this);
 	    if (runningThreads.isEmpty())
 		privilege.exit(1);
 	    else
@@ -272,6 +542,12 @@ public final class TCB {
 	waitForInterrupt();
 	
 	if (done) {
+	    /* Offer our Java thread to the pool before acknowledging, so
+	     * that the very next start() can already reuse it.
+	     */
+	    if (host != null)
+		host.release();
+
 	    currentTCB.interrupt();
 	    throw new ThreadDeath();
 	}
@@ -286,23 +562,43 @@ public final class TCB {
      * process of starting and destroying TCBs, as well as in context switching
      * from this TCB to another. We don't rely on <tt>currentTCB</tt>, since it
      * is updated by <tt>contextSwitch()</tt> before we get called.
+     *
+     * <p>
+     * With virtual threads, this parks the Java thread instead, since a
+     * virtual thread blocked on a monitor pins its carrier thread.
      */
-    private synchronized void waitForInterrupt() {
-	while (!running) {
-	    try { wait(); }
-	    catch (InterruptedException e) { }
+    private void waitForInterrupt() {
+	if (virtualThreads) {
+	    while (!running)
+		LockSupport.park(this);
+	}
+	else {
+	    synchronized (this) {
+		while (!running) {
+		    try { wait(); }
+		    catch (InterruptedException e) { }
+		}
+	    }
 	}
     }
 
     /**
      * Wake up this TCB by setting its <tt>running</tt> flag to <tt>true</tt>
-     * and signalling the monitor bound to it. Used in the ping-pong process of
-     * starting and destroying TCBs, as well as in context switching to this
-     * TCB.
+     * and signalling the monitor bound to it (or unparking its Java thread).
+     * Used in the ping-pong process of starting and destroying TCBs, as well
+     * as in context switching to this TCB.
      */
-    private synchronized void interrupt() {
-	running = true;
-	notify();
+    private void interrupt() {
+	if (virtualThreads) {
+	    running = true;
+	    LockSupport.unpark(javaThread);
+	}
+	else {
+	    synchronized (this) {
+		running = true;
+		notify();
+	    }
+	}
     }
 
     private void associateThread(KThread thread) {
@@ -332,6 +628,40 @@ public final class TCB {
      */
     public static final int maxThreads = 250;
 
+    /**
+     * The maximum number of started, non-destroyed TCB's that can be in
+     * existence when running on virtual threads.
+     */
+    public static final int maxVirtualThreads = 100000;
+
+    /** <tt>true</tt> if TCBs hand off with park/unpark, on virtual threads. */
+    private static boolean virtualThreads = false;
+    /** The JVM's virtual thread builder, or <tt>null</tt> if not in use. */
+    private static Object virtualThreadBuilder = null;
+    /** <tt>Thread.Builder.unstarted(Runnable)</tt>. */
+    private static Method unstartedMethod = null;
+
+    /** <tt>true</tt> if every TCB is a continuation on one Java thread. */
+    private static boolean continuations = false;
+    /** The <tt>ContinuationScope</tt> shared by all TCBs. */
+    private static Object continuationScope = null;
+    /** <tt>Continuation(ContinuationScope, Runnable)</tt>. */
+    private static MethodHandle newContinuation = null;
+    /** <tt>Continuation.run()</tt>. */
+    private static MethodHandle runContinuation = null;
+    /** <tt>Continuation.yield(ContinuationScope)</tt>. */
+    private static MethodHandle yieldContinuation = null;
+    /**
+     * With continuations, the TCB that the carrier loop in
+     * <tt>start(Runnable)</tt> should mount next.
+     */
+    private static TCB nextTCB = null;
+
+    private static final String parallelismKey =
+	"jdk.virtualThreadScheduler.parallelism";
+    private static final String maxPoolSizeKey =
+	"jdk.virtualThreadScheduler.maxPoolSize";
+
     /**
      * A reference to the currently running TCB. It is initialized to
      * <tt>null</tt> when the <tt>TCB</tt> class is loaded, and then the first
@@ -348,18 +678,21 @@ public final class TCB {
     private static TCB currentTCB = null;
 
     /**
-     * A vector containing all <i>running</i> TCB objects. It is initialized to
-     * an empty vector when the <tt>TCB</tt> class is loaded. TCB objects are
+     * A set containing all <i>running</i> TCB objects. It is initialized to
+     * an empty set when the <tt>TCB</tt> class is loaded. TCB objects are
      * added only in <tt>start(Runnable)</tt>, which can only be invoked once
      * on each TCB object. TCB objects are removed only in each of the
      * <tt>catch</tt> clauses of <tt>threadroot()</tt>, one of which is always
      * invoked on thread termination. The maximum number of threads in
-     * <tt>runningThreads</tt> is limited to <tt>maxThreads</tt> by
+     * <tt>runningThreads</tt> is limited to <tt>getMaxThreads()</tt> by
      * <tt>start(Runnable)</tt>. If <tt>threadroot()</tt> drops the number of
      * TCB objects in <tt>runningThreads</tt> to zero, Nachos exits, so once
-     * the first TCB is created, this vector is basically never empty.
+     * the first TCB is created, this set is basically never empty. Doomed
+     * TCBs remove themselves concurrently with the TCB that destroyed them,
+     * so the set is synchronized.
      */
-    private static Vector<TCB> runningThreads = new Vector<TCB>();
+    private static Set<TCB> runningThreads =
+	Collections.synchronizedSet(new HashSet<TCB>());
     
     private static Privilege privilege;
     private static KThread toBeDestroyed = null;
@@ -388,7 +721,7 @@ public final class TCB {
      * destroying a TCB, this is temporarily true for a thread other than that
      * of the current TCB.
      */
-    private boolean running = false;
+    private volatile boolean running = false;
 
     /**
      * Set to <tt>true</tt> by <tt>destroy()</tt>, so that when
@@ -401,6 +734,109 @@ public final class TCB {
     private boolean associated = false;
     private Runnable target;
     private Runnable tcbTarget;
+    /** With continuations, the <tt>Continuation</tt> this TCB runs in. */
+    private Object continuation = null;
+
+    /**
+     * The pooled Java thread running this TCB, or <tt>null</tt> if this TCB
+     * has no thread of its own to give back (the first TCB, or any TCB run as
+     * a continuation).
+     */
+    private PooledThread host = null;
+
+    /** The most Java threads the pool may hold. */
+    private static int poolSize = 0;
+
+    private static final char dbgTCB = 'T';
+
+    /**
+     * A Java thread that can outlive its TCB. When its TCB is destroyed, the
+     * thread waits in the pool until <tt>start(Runnable)</tt> assigns it a
+     * new TCB, or forever if the pool was full.
+     */
+    private static final class PooledThread {
+	PooledThread(Thread thread) {
+	    this.thread = thread;
+	}
+
+	/**
+	 * Remove a thread from the pool.
+	 *
+	 * @return	an idle pooled thread, or <tt>null</tt> if the pool is
+	 *		empty.
+	 */
+	static PooledThread take() {
+	    synchronized (pool) {
+		int size = pool.size();
+		return (size == 0) ? null : pool.remove(size-1);
+	    }
+	}
+
+	/**
+	 * Add this thread to the pool, if there is room. Called by the
+	 * thread itself, while its TCB is being destroyed.
+	 */
+	void release() {
+	    synchronized (pool) {
+		pooled = (pool.size() < poolSize);
+		if (pooled)
+		    pool.add(this);
+	    }
+	}
+
+	/**
+	 * Wait for <tt>assign()</tt>. Called by the thread itself once its
+	 * TCB's stack has unwound.
+	 *
+	 * @return	the TCB to run next, or <tt>null</tt> if this thread did
+	 *		not make it into the pool and should exit.
+	 */
+	TCB await() {
+	    if (!pooled)
+		return null;
+
+	    if (virtualThreads) {
+		while (next == null)
+		    LockSupport.park(this);
+	    }
+	    else {
+		synchronized (this) {
+		    while (next == null) {
+			try { wait(); }
+			catch (InterruptedException e) { }
+		    }
+		}
+	    }
+
+	    TCB tcb = next;
+	    next = null;
+	    return tcb;
+	}
+
+	/**
+	 * Hand this thread, just taken from the pool, a new TCB to run.
+	 */
+	void assign(TCB tcb) {
+	    if (virtualThreads) {
+		next = tcb;
+		LockSupport.unpark(thread);
+	    }
+	    else {
+		synchronized (this) {
+		    next = tcb;
+		    notify();
+		}
+	    }
+	}
+
+	final Thread thread;
+	private boolean pooled = false;
+	private volatile TCB next = null;
+
+	/** Idle threads, most recently released last. */
+	private static final ArrayList<PooledThread> pool =
+	    new ArrayList<PooledThread>();
+    }
 
     private static class TCBPrivilege implements Privilege.TCBPrivilege {
 	public void associateThread(KThread thread) {
@@ -11,13 +11,18 @@ import nachos.threads.*;
  *
  * <p>
  * The post office uses a "postal worker" thread to wait for messages to arrive
- * from the network and to place them in the appropriate queues. This cannot
- * be done in the receive interrupt handler because each queue (implemented
- * with a <tt>SynchList</tt>) is protected by a lock.
+ * from the network and to place them in the appropriate queues.
+ *
+ * <p>
+ * Each queue holds at most <tt>PostOffice.mailboxCapacity</tt> messages. A
+ * message for a port whose queue is full is dropped, as if the network had
+ * lost it, so that a flood on one port cannot use up memory or hold up
+ * delivery to the others.
  */
 public class PostOffice {
     /**
-     * Allocate a new post office, using an array of <tt>SynchList</tt>s.
+     * Allocate a new post office, using an array of
+     * <tt>BoundedSynchList</tt>s.
      * Register the interrupt handlers with the network hardware and start the
      * "postal worker" thread.
      */
@@ -26,9 +31,11 @@ public class PostOffice {
 	messageSent = new Semaphore(0);
 	sendLock = new Lock();
 
-	queues = new SynchList[MailMessage.portLimit];
+	int capacity = Config.getInteger("PostOffice.mailboxCapacity", 16);
+
+	queues = new BoundedSynchList[MailMessage.portLimit];
 	for (int i=0; i<queues.length; i++)
-	    queues[i] = new SynchList();
+	    queues[i] = new BoundedSynchList(capacity);
 
 	Runnable receiveHandler = new Runnable() {
 	    public void run() { receiveInterrupt(); }
@@ -89,7 +96,9 @@ public class PostOffice {
 				   + ": " + mail);
 
 	    // atomically add message to the mailbox and wake a waiting thread
-	    queues[mail.dstPort].add(mail);
+	    if (!queues[mail.dstPort].tryAdd(mail))
+		Lib.debug(dbgNet, "mailbox full, dropping mail to port "
+			  + mail.dstPort);
 	}
     }
 
@@ -125,7 +134,7 @@ public class PostOffice {
 	messageSent.V();
     }
 
-    private SynchList[] queues;
+    private BoundedSynchList[] queues;
     private Semaphore messageReceived;	// V'd when a message can be dequeued
     private Semaphore messageSent;	// V'd when a message can be queued
     private Lock sendLock;
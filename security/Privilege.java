@@ -158,6 +158,26 @@ public abstract class Privilege {
 	 *		MIPS user code.
 	 */
 	public void tick(boolean inKernelMode);
+
+	/**
+	 * Advance the simulated time by several ticks at once. Same as
+	 * calling <tt>tick(inKernelMode)</tt> <i>numTicks</i> times, provided
+	 * no interrupt falls due before the last of them.
+	 *
+	 * @param inKernelMode	<tt>true</tt> if the current thread is running kernel
+	 *		code, <tt>false</tt> if the current thread is running
+	 *		MIPS user code.
+	 * @param numTicks	the number of ticks to advance by.
+	 */
+	public void tick(boolean inKernelMode, int numTicks);
+
+	/**
+	 * Return the time at which the earliest pending interrupt is due.
+	 *
+	 * @return	the time of the next interrupt, or
+	 *		<tt>Long.MAX_VALUE</tt> if none are pending.
+	 */
+	public long nextInterruptTime();
     }
 
     /**
@@ -1,7 +1,6 @@
 package nachos.threads;
 
-import java.util.LinkedList;
-import java.util.Queue;
+import java.util.PriorityQueue;
 
 import nachos.machine.*;
 
@@ -25,13 +24,21 @@ public class Alarm {
 
     /**
      * The timer interrupt handler. This is called by the machine's timer
-     * periodically (approximately every 500 clock ticks). Causes the current
+     * periodically (approximately every 500 clock ticks). Wakes every
+     * sleeping thread whose wake time has passed, then causes the current
      * thread to yield, forcing a context switch if there is another thread
-     * that should be run.
+     * that should be run, unless the scheduler says the current thread's
+     * time slice is not over yet.
      */
     public void timerInterrupt() {
 		boolean setStatus = Machine.interrupt().disable();
-		KThread.yield();
+
+		long time = Machine.timer().getTime();
+		while (!sleepQueue.isEmpty() && sleepQueue.peek().wakeTime <= time)
+		    sleepQueue.poll().thread.ready();
+
+		if (ThreadedKernel.scheduler.timerInterrupt())
+		    KThread.yield();
 		Machine.interrupt().restore(setStatus);			
     }
 
@@ -64,25 +71,44 @@ public class Alarm {
      * @see	nachos.machine.Timer#getTime()
      */
     public void waitUntil(long x) {
-    	long wakeTime = Machine.timer().getTime() + x;
-    	while (wakeTime > Machine.timer().getTime())
-    	    KThread.yield();
-    	
-    	// for now, cheat just to get something working (busy waiting is bad)
-    	//System.out.println("Call");
-   /*
-    if (x <= 0) {
-    	return;
-    }
-    	
+	if (x <= 0)
+	    return;
+
 	long wakeTime = Machine.timer().getTime() + x;
-	Machine.interrupt().disable();
-	
-	while(wakeTime > Machine.timer().getTime()){
-		timerInterrupt();
+
+	boolean intStatus = Machine.interrupt().disable();
+
+	sleepQueue.add(new Sleeper(wakeTime, numSleepers++,
+				   KThread.currentThread()));
+	KThread.sleep();
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * A thread blocked in <tt>waitUntil()</tt>. Sleepers are ordered by wake
+     * time, and then by the order in which they went to sleep.
+     */
+    private static class Sleeper implements Comparable<Sleeper> {
+	Sleeper(long wakeTime, long id, KThread thread) {
+	    this.wakeTime = wakeTime;
+	    this.id = id;
+	    this.thread = thread;
 	}
-	*/
-	//System.out.println("Call");
+
+	public int compareTo(Sleeper s) {
+	    if (wakeTime != s.wakeTime)
+		return (wakeTime < s.wakeTime) ? -1 : 1;
+	    else
+		return (id < s.id) ? -1 : (id > s.id) ? 1 : 0;
+	}
+
+	long wakeTime;
+	long id;
+	KThread thread;
     }
 
+    /** Sleeping threads, earliest wake time first. */
+    private PriorityQueue<Sleeper> sleepQueue = new PriorityQueue<Sleeper>();
+    private long numSleepers = 0;
 }
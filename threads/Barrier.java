@@ -0,0 +1,145 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+/**
+ * A <tt>Barrier</tt> makes a fixed number of threads wait for each other.
+ * Each thread calls <tt>await()</tt>, and the last of them to arrive wakes all
+ * the others. The barrier is then ready to be used again by the same number
+ * of threads.
+ *
+ * <p>
+ * Waiting threads are linked through themselves, so arriving takes constant
+ * time and allocates nothing, and the last arrival moves every waiting thread
+ * to the ready queue in a single pass.
+ */
+public class Barrier {
+    /**
+     * Allocate a new barrier.
+     *
+     * @param	parties	the number of threads that must call <tt>await()</tt>
+     *			before any of them returns.
+     */
+    public Barrier(int parties) {
+	Lib.assertTrue(parties > 0);
+
+	this.parties = parties;
+    }
+
+    /**
+     * Wait until <tt>parties</tt> threads, including this one, have called
+     * <tt>await()</tt> since the barrier was last tripped.
+     *
+     * @return	the order this thread arrived in: <tt>parties-1</tt> for the
+     *		first thread to arrive, and 0 for the last.
+     */
+    public int await() {
+	boolean intStatus = Machine.interrupt().disable();
+
+	int index = parties - ++arrived;
+
+	if (index == 0) {
+	    arrived = 0;
+	    waiters.wakeAll();
+	}
+	else {
+	    waiters.add(KThread.currentThread());
+	    KThread.sleep();
+	}
+
+	Machine.interrupt().restore(intStatus);
+
+	return index;
+    }
+
+    /**
+     * Return the number of threads that must call <tt>await()</tt> to trip
+     * this barrier.
+     *
+     * @return	the number of parties.
+     */
+    public int getParties() {
+	return parties;
+    }
+
+    /**
+     * Test if this module is working.
+     */
+    public static void selfTest() {
+	final int numThreads = 4, rounds = 5;
+	final Barrier barrier = new Barrier(numThreads);
+	final int[] round = new int[numThreads];
+	final CountDownLatch done = new CountDownLatch(numThreads-1);
+
+	for (int i=1; i<numThreads; i++) {
+	    final int which = i;
+	    new KThread(new Runnable() {
+		    public void run() {
+			for (int r=1; r<=rounds; r++) {
+			    round[which] = r;
+			    barrier.await();
+			    for (int j=0; j<numThreads; j++)
+				Lib.assertTrue(round[j] >= r);
+			    KThread.yield();
+			}
+			done.countDown();
+		    }
+		}).setName("barrier " + i).fork();
+	}
+
+	for (int r=1; r<=rounds; r++) {
+	    round[0] = r;
+	    barrier.await();
+	    for (int j=0; j<numThreads; j++)
+		Lib.assertTrue(round[j] >= r);
+	}
+
+	done.await();
+    }
+
+    /**
+     * Measure the cost of a barrier round with <tt>benchmarkThreads</tt>
+     * threads, or as many as the <tt>TCB</tt> backend allows.
+     */
+    public static void benchmark() {
+	final int numThreads =
+	    Math.min(benchmarkThreads, TCB.getMaxThreads() - 10);
+	final Barrier barrier = new Barrier(numThreads);
+	final CountDownLatch done = new CountDownLatch(numThreads-1);
+
+	for (int i=1; i<numThreads; i++) {
+	    new KThread(new Runnable() {
+		    public void run() {
+			for (int r=0; r<benchmarkRounds; r++)
+			    barrier.await();
+			done.countDown();
+		    }
+		}).setName("barrier").fork();
+	}
+
+	long startTicks = Machine.timer().getTime();
+	long startTime = System.nanoTime();
+
+	for (int r=0; r<benchmarkRounds; r++)
+	    barrier.await();
+
+	long nanos = System.nanoTime() - startTime;
+	int arrivals = numThreads * benchmarkRounds;
+	System.out.println("Barrier benchmark: " + numThreads + " threads, "
+			   + benchmarkRounds + " rounds, "
+			   + (Machine.timer().getTime() - startTicks)
+			   + " ticks, " + (nanos / arrivals)
+			   + " ns/arrival");
+
+	done.await();
+    }
+
+    /** The number of threads in the barrier benchmark, if allowed. */
+    static final int benchmarkThreads = 2000;
+    /** The number of rounds in the barrier benchmark. */
+    static final int benchmarkRounds = 10;
+
+    private int parties;
+    private int arrived = 0;
+    private WaitList waiters = new WaitList();
+}
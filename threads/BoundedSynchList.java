@@ -0,0 +1,197 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+/**
+ * A synchronized queue that holds at most a fixed number of objects, in an
+ * array allocated when the queue is created.
+ *
+ * <p>
+ * No lock is needed to add or remove an object, because neither can cause a
+ * context switch between testing the queue and changing it. Interrupts are
+ * only disabled to put a thread to sleep when the queue is full or empty, or
+ * to wake one.
+ */
+public class BoundedSynchList {
+    /**
+     * Allocate a new synchronized queue.
+     *
+     * @param	capacity	the most objects the queue can hold.
+     */
+    public BoundedSynchList(int capacity) {
+	Lib.assertTrue(capacity > 0);
+
+	items = new Object[capacity];
+    }
+
+    /**
+     * Add the specified object to the end of the queue, blocking until the
+     * queue is not full if necessary. If another thread is waiting in
+     * <tt>removeFirst()</tt>, it is woken up.
+     *
+     * @param	o	the object to add. Must not be <tt>null</tt>.
+     */
+    public void add(Object o) {
+	Lib.assertTrue(o != null);
+
+	while (count == items.length)
+	    waitOn(notFull);
+
+	put(o);
+	wake(notEmpty, 1);
+    }
+
+    /**
+     * Add the specified object to the end of the queue if it is not full.
+     *
+     * @param	o	the object to add. Must not be <tt>null</tt>.
+     * @return	<tt>true</tt> if the object was added, or <tt>false</tt> if
+     *		the queue was full.
+     */
+    public boolean tryAdd(Object o) {
+	Lib.assertTrue(o != null);
+
+	if (count == items.length)
+	    return false;
+
+	put(o);
+	wake(notEmpty, 1);
+	return true;
+    }
+
+    /**
+     * Remove an object from the front of the queue, blocking until the queue
+     * is non-empty if necessary.
+     *
+     * @return	the element removed from the front of the queue.
+     */
+    public Object removeFirst() {
+	while (count == 0)
+	    waitOn(notEmpty);
+
+	Object o = take();
+	wake(notFull, 1);
+	return o;
+    }
+
+    /**
+     * Remove an object from the front of the queue if it is not empty.
+     *
+     * @return	the element removed from the front of the queue, or
+     *		<tt>null</tt> if the queue was empty.
+     */
+    public Object tryRemove() {
+	if (count == 0)
+	    return null;
+
+	Object o = take();
+	wake(notFull, 1);
+	return o;
+    }
+
+    /**
+     * Remove as many objects as are in the queue and fit in <i>buf</i>,
+     * without blocking, and store them in <i>buf</i> in order.
+     *
+     * @param	buf	the array to store the removed objects in.
+     * @return	the number of objects removed.
+     */
+    public int drainTo(Object[] buf) {
+	int n = Math.min(count, buf.length);
+	for (int i=0; i<n; i++)
+	    buf[i] = take();
+
+	wake(notFull, n);
+	return n;
+    }
+
+    /**
+     * Return the number of objects in the queue.
+     *
+     * @return	the number of objects in the queue.
+     */
+    public int size() {
+	return count;
+    }
+
+    private void put(Object o) {
+	items[(first + count) % items.length] = o;
+	count++;
+    }
+
+    private Object take() {
+	Object o = items[first];
+	items[first] = null;
+	first = (first + 1) % items.length;
+	count--;
+	return o;
+    }
+
+    private void waitOn(WaitList waiters) {
+	boolean intStatus = Machine.interrupt().disable();
+
+	waiters.add(KThread.currentThread());
+	KThread.sleep();
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    private void wake(WaitList waiters, int n) {
+	if (waiters.size() == 0 || n == 0)
+	    return;
+
+	boolean intStatus = Machine.interrupt().disable();
+
+	while (n-- > 0 && waiters.wakeFirst())
+	    ;
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    private static class PingTest implements Runnable {
+	PingTest(BoundedSynchList ping, BoundedSynchList pong) {
+	    this.ping = ping;
+	    this.pong = pong;
+	}
+
+	public void run() {
+	    for (int i=0; i<10; i++)
+		pong.add(ping.removeFirst());
+	}
+
+	private BoundedSynchList ping;
+	private BoundedSynchList pong;
+    }
+
+    /**
+     * Test that this module is working.
+     */
+    public static void selfTest() {
+	BoundedSynchList ping = new BoundedSynchList(1);
+	BoundedSynchList pong = new BoundedSynchList(1);
+
+	new KThread(new PingTest(ping, pong)).setName("ping").fork();
+
+	for (int i=0; i<10; i++) {
+	    Integer o = Integer.valueOf(i);
+	    ping.add(o);
+	    Lib.assertTrue(pong.removeFirst() == o);
+	}
+
+	// a full queue refuses more, and drains in order
+	BoundedSynchList list = new BoundedSynchList(3);
+	for (int i=0; i<3; i++)
+	    Lib.assertTrue(list.tryAdd(Integer.valueOf(i)));
+	Lib.assertTrue(!list.tryAdd(Integer.valueOf(3)));
+
+	Object[] buf = new Object[5];
+	Lib.assertTrue(list.drainTo(buf) == 3);
+	for (int i=0; i<3; i++)
+	    Lib.assertTrue(((Integer) buf[i]).intValue() == i);
+	Lib.assertTrue(list.tryRemove() == null);
+    }
+
+    private Object[] items;
+    private int first = 0, count = 0;
+    private WaitList notEmpty = new WaitList(), notFull = new WaitList();
+}
@@ -0,0 +1,287 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+import java.util.Iterator;
+import java.util.TreeSet;
+
+/**
+ * A completely fair scheduler.
+ *
+ * <p>
+ * Each thread has a <i>virtual runtime</i>: the simulated time it has spent
+ * running, scaled down by its weight. The time is measured between
+ * <tt>restoreState()</tt> and <tt>saveState()</tt>, so it includes the kernel
+ * and user ticks charged to the thread while it held the processor. The next
+ * thread to be dequeued is always the waiting thread with the smallest
+ * virtual runtime (the one that has waited longest, among equal runtimes), so
+ * every thread receives processor time in proportion to its weight.
+ *
+ * <p>
+ * Weights derive from priorities, which range from
+ * <tt>PriorityScheduler.priorityMinimum</tt> to
+ * <tt>PriorityScheduler.priorityMaximum</tt>; each level is worth 25% more
+ * processor time than the one below it. Each queue keeps its waiting threads
+ * in a red-black tree ordered by virtual runtime.
+ *
+ * <p>
+ * A thread that has been away from a queue (asleep, or new) rejoins it no
+ * more than <tt>sleeperCredit</tt> ticks of virtual runtime behind the last
+ * thread chosen from it, so it cannot monopolize the processor to catch up.
+ * Priority is not donated: no thread starves under this scheduler, so a lock
+ * holder always gets to run.
+ */
+public class CFSScheduler extends PriorityScheduler {
+    /**
+     * Allocate a new completely fair scheduler.
+     */
+    public CFSScheduler() {
+    }
+
+    /**
+     * Allocate a new fair thread queue.
+     *
+     * @param	transferPriority	ignored. Fair schedulers do not
+     *					donate priority.
+     * @return	a new fair thread queue.
+     */
+    public ThreadQueue newThreadQueue(boolean transferPriority) {
+	return new FairQueue();
+    }
+
+    public boolean donatesPriority() {
+	return false;
+    }
+
+    public void saveState(KThread thread) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	getThreadState(thread).charge();
+    }
+
+    public void restoreState(KThread thread) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	getThreadState(thread).runStart = Machine.timer().getTime();
+    }
+
+    /**
+     * Return the weight of threads with the specified priority. A thread
+     * with the default priority has a weight of 1024.
+     *
+     * @param	priority	the priority.
+     * @return	the weight for that priority.
+     */
+    public static int getWeight(int priority) {
+	return weights[priority - priorityMinimum];
+    }
+
+    private static final int[] weights = {
+	819, 1024, 1280, 1600, 2000, 2500, 3125, 3906
+    };
+
+    /**
+     * The most virtual runtime, in ticks, that a thread rejoining a queue can
+     * be behind the last thread chosen from it.
+     */
+    public static final long sleeperCredit = Stats.TimerTicks;
+
+    /**
+     * Test if this module is working.
+     */
+    public static void selfTest() {
+	CFSScheduler scheduler = new CFSScheduler();
+	ThreadQueue queue = scheduler.newThreadQueue(false);
+	KThread[] threads = new KThread[3];
+
+	boolean intStatus = Machine.interrupt().disable();
+
+	for (int i=0; i<threads.length; i++) {
+	    threads[i] = new KThread().setName("cfs " + i);
+	    scheduler.setPriority(threads[i], 2*i + priorityMinimum);
+	    queue.waitForAccess(threads[i]);
+	}
+
+	/* Give each chosen thread the same 100 ticks to run; the number of
+	 * times each is chosen should be in proportion to its weight.
+	 */
+	int[] runs = new int[threads.length];
+	for (int i=0; i<1000; i++) {
+	    KThread next = queue.nextThread();
+	    runs[(scheduler.getPriority(next) - priorityMinimum) / 2]++;
+	    scheduler.getThreadState(next).ran(100);
+	    queue.waitForAccess(next);
+	}
+
+	int totalWeight = 0;
+	for (int i=0; i<threads.length; i++)
+	    totalWeight += getWeight(2*i + priorityMinimum);
+	for (int i=0; i<threads.length; i++) {
+	    int expected = 1000 * getWeight(2*i + priorityMinimum) / totalWeight;
+	    Lib.assertTrue(Math.abs(runs[i] - expected) <= 2);
+	}
+
+	while (queue.nextThread() != null)
+	    ;
+
+	Machine.interrupt().restore(intStatus);
+
+	for (int i=0; i<threads.length; i++)
+	    threads[i].schedulingState = null;
+    }
+
+    /**
+     * Return the scheduling state of the specified thread.
+     *
+     * @param	thread	the thread whose scheduling state to return.
+     * @return	the scheduling state of the specified thread.
+     */
+    protected FairState getThreadState(KThread thread) {
+	if (thread.schedulingState == null)
+	    thread.schedulingState = new FairState(thread);
+
+	return (FairState) thread.schedulingState;
+    }
+
+    /**
+     * A <tt>ThreadQueue</tt> that sorts threads by virtual runtime.
+     */
+    protected class FairQueue extends ThreadQueue {
+	FairQueue() {
+	}
+
+	/**
+	 * Add a thread to the tree. If it is the current thread, it is charged
+	 * for the time it has run so far, so that its virtual runtime does not
+	 * change while it is in the tree.
+	 */
+	public void waitForAccess(KThread thread) {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    FairState state = getThreadState(thread);
+	    Lib.assertTrue(state.waitingOn == null);
+
+	    if (thread == KThread.currentThread())
+		state.charge();
+	    else
+		state.vruntime = Math.max(state.vruntime,
+					  minVruntime - sleeperCredit);
+
+	    state.waitTime = numWaits++;
+	    state.waitingOn = this;
+	    tree.add(state);
+	}
+
+	public void acquire(KThread thread) {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+	}
+
+	public KThread nextThread() {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    if (tree.isEmpty())
+		return null;
+
+	    FairState next = tree.pollFirst();
+	    next.waitingOn = null;
+	    minVruntime = Math.max(minVruntime, next.vruntime);
+
+	    return next.thread;
+	}
+
+	/**
+	 * Return the next thread that <tt>nextThread()</tt> would return,
+	 * without modifying the state of this queue.
+	 *
+	 * @return	the next thread that <tt>nextThread()</tt> would
+	 *		return.
+	 */
+	protected FairState pickNextThread() {
+	    return tree.isEmpty() ? null : tree.first();
+	}
+
+	/**
+	 * Print out the waiting threads, with their virtual runtimes.
+	 */
+	public void print() {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    for (Iterator<FairState> i=tree.iterator(); i.hasNext(); ) {
+		FairState state = i.next();
+		System.out.print(state.thread + " (" + state.vruntime + ") ");
+	    }
+	}
+
+	/** The waiting threads, ordered by virtual runtime. */
+	TreeSet<FairState> tree = new TreeSet<FairState>();
+	/** The virtual runtime of the last thread chosen. */
+	long minVruntime = 0;
+    }
+
+    /**
+     * The scheduling state of a thread in a completely fair scheduler.
+     */
+    protected class FairState extends ThreadState
+	implements Comparable<FairState> {
+	/**
+	 * Allocate a new <tt>FairState</tt> object and associate it with the
+	 * specified thread.
+	 *
+	 * @param	thread	the thread this state belongs to.
+	 */
+	public FairState(KThread thread) {
+	    super(thread);
+
+	    runStart = Machine.timer().getTime();
+	}
+
+	/**
+	 * Charge the associated thread, which is the current thread, for the
+	 * time since it last started running or was last charged.
+	 */
+	void charge() {
+	    long time = Machine.timer().getTime();
+	    ran(time - runStart);
+	    runStart = time;
+	}
+
+	/**
+	 * Add the specified amount of run time, scaled by the weight of the
+	 * associated thread, to its virtual runtime.
+	 *
+	 * @param	ticks	the number of ticks the thread ran for.
+	 */
+	void ran(long ticks) {
+	    if (ticks == 0)
+		return;
+
+	    if (waitingOn != null)
+		waitingOn.tree.remove(this);
+
+	    vruntime += ticks * getWeight(priorityDefault) /
+		getWeight(effectivePriority);
+
+	    if (waitingOn != null)
+		waitingOn.tree.add(this);
+	}
+
+	public int compareTo(FairState state) {
+	    if (vruntime != state.vruntime)
+		return (vruntime < state.vruntime) ? -1 : 1;
+	    else if (waitTime != state.waitTime)
+		return (waitTime < state.waitTime) ? -1 : 1;
+	    else
+		return 0;
+	}
+
+	/** The virtual runtime of the associated thread. */
+	long vruntime = 0;
+	/** When the associated thread last started running or was charged. */
+	long runStart;
+	/** The queue the associated thread is waiting on, if any. */
+	FairQueue waitingOn = null;
+    }
+
+    /** The number of times any thread has waited on a queue. */
+    private long numWaits = 0;
+}
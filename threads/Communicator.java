@@ -8,15 +8,44 @@ import nachos.machine.*;
  * and multiple threads can be waiting to <i>listen</i>. But there should never
  * be a time when both a speaker and a listener are waiting, because the two
  * threads can be paired off at this point.
+ *
+ * <p>
+ * A communicator may also be given a <i>capacity</i>, the number of words
+ * speakers can leave in it when no thread is listening. A speaker only waits
+ * once that many words are waiting to be heard. With the default capacity of
+ * 0, every word is handed to a listener that is already waiting for it.
+ *
+ * <p>
+ * Words are heard in the order they were spoken. <tt>speak(int[])</tt> and
+ * <tt>listen(int[])</tt> move many words for one trip through the lock, and
+ * wake the other side once per batch rather than once per word. A listener
+ * waiting for several words lets speakers hand over up to
+ * <tt>transferSize</tt> of them at once, even at capacity 0.
  */
 public class Communicator {
     /**
      * Allocate a new communicator.
      */
     public Communicator() {
-    	lock = new Lock();
-    	spkReady =  new Condition(lock);
-    	lstnReady = new Condition(lock);
+	this(0);
+    }
+
+    /**
+     * Allocate a new communicator that can hold words no thread is listening
+     * for yet.
+     *
+     * @param	capacity	the number of words speakers may leave in this
+     *				communicator without waiting.
+     */
+    public Communicator(int capacity) {
+	Lib.assertTrue(capacity >= 0);
+
+	this.capacity = capacity;
+	buffer = new int[capacity + transferSize];
+
+	lock = new Lock();
+	spkReady = new Condition(lock);
+	lstnReady = new Condition(lock);
     }
 
     /**
@@ -24,21 +53,47 @@ public class Communicator {
      * <i>word</i> to the listener.
      *
      * <p>
-     * Does not return until this thread is paired up with a listening thread.
-     * Exactly one listener should receive <i>word</i>.
+     * Does not return until this thread is paired up with a listening thread,
+     * or until the word fits in this communicator's capacity. Exactly one
+     * listener should receive <i>word</i>.
      *
      * @param	word	the integer to transfer.
      */
     public void speak(int word) {
-    	lock.acquire();
-    	spk++;
-
-    	while(lstn==0){lstnReady.sleep();}
-    	
-    	lstn--;
-    	msg = word;
-    	spkReady.wake();
-    	lock.release();
+	lock.acquire();
+
+	while (!hasRoom())
+	    lstnReady.sleep();
+
+	put(word);
+	spkReady.wake();
+
+	lock.release();
+    }
+
+    /**
+     * Transfer all of <i>words</i>, in order, as if by calling
+     * <tt>speak()</tt> on each. Listeners may hear the words while later ones
+     * are still waiting to be spoken, and words from other speakers are not
+     * interleaved unless this thread has to wait.
+     *
+     * @param	words	the integers to transfer.
+     */
+    public void speak(int[] words) {
+	lock.acquire();
+
+	int spoken = 0;
+	while (spoken < words.length) {
+	    while (!hasRoom())
+		lstnReady.sleep();
+
+	    while (spoken < words.length && hasRoom())
+		put(words[spoken++]);
+
+	    spkReady.wakeAll();
+	}
+
+	lock.release();
     }
 
     /**
@@ -46,44 +101,124 @@ public class Communicator {
      * the <i>word</i> that thread passed to <tt>speak()</tt>.
      *
      * @return	the integer transferred.
-     */    
+     */
     public int listen() {
+	lock.acquire();
+
+	wanted++;
+	lstnReady.wake();
+
+	while (count == 0)
+	    spkReady.sleep();
+
+	wanted--;
+	int word = take();
+	lstnReady.wake();
+
+	lock.release();
+	return word;
+    }
+
+    /**
+     * Fill <i>buf</i> with words spoken through this communicator, in order,
+     * as if by calling <tt>listen()</tt> for each. Does not return until
+     * <i>buf</i> is full.
+     *
+     * @param	buf	the array to store the transferred integers in.
+     */
+    public void listen(int[] buf) {
+	lock.acquire();
+
+	wanted += buf.length;
+	lstnReady.wakeAll();
+
+	int heard = 0;
+	while (heard < buf.length) {
+	    while (count == 0)
+		spkReady.sleep();
+
+	    while (heard < buf.length && count > 0) {
+		wanted--;
+		buf[heard++] = take();
+	    }
+
+	    lstnReady.wakeAll();
+	}
+
+	lock.release();
+    }
+
+    /**
+     * Return whether a speaker may add a word now: that is, whether there are
+     * fewer than <tt>capacity</tt> words waiting beyond those that listeners
+     * are already waiting for.
+     */
+    private boolean hasRoom() {
+	return count < capacity + Math.min(wanted, transferSize);
+    }
 
-    	lock.acquire();
-    	lstn++;
-    	lstnReady.wake();
-    	
-    	while(spk==0){spkReady.sleep();}
-    	
-    	spk--;
-    	int ret = msg;
-    	lock.release();
-    	return ret;
-    	
+    private void put(int word) {
+	buffer[(first + count) % buffer.length] = word;
+	count++;
     }
-    
+
+    private int take() {
+	int word = buffer[first];
+	first = (first + 1) % buffer.length;
+	count--;
+	return word;
+    }
+
     public static void selfTest(){
     	System.out.println("Communicator SelfTest Output");
         System.out.println("Test Speaker First #1");
         final Communicator tester = new Communicator();
-    	
+
         new KThread(new Runnable(){
         	public void run(){
-        		System.out.println("SPK: "+tester.spk+" LSTN: "+tester.lstn);
+        		System.out.println("WAITING: "+tester.count+" WANTED: "+tester.wanted);
         		tester.listen();
-        		System.out.println("SPK: "+tester.spk+" LSTN: "+tester.lstn);
+        		System.out.println("WAITING: "+tester.count+" WANTED: "+tester.wanted);
         	}
         }).setName("Test Case 1").fork();
-       
+
         tester.speak(0);
+
+        System.out.println("Test Bulk Transfer #2");
+        for (int capacity=0; capacity<=100; capacity+=100) {
+            final Communicator bulk = new Communicator(capacity);
+            final int[] words = new int[1000];
+            for (int i=0; i<words.length; i++)
+        	words[i] = i;
+
+            new KThread(new Runnable(){
+        	    public void run(){
+        		bulk.speak(words);
+        	    }
+        	}).setName("Test Case 2").fork();
+
+            int[] buf = new int[250];
+            for (int heard=0; heard<words.length; heard+=buf.length) {
+        	bulk.listen(buf);
+        	for (int i=0; i<buf.length; i++)
+        	    Lib.assertTrue(buf[i] == heard+i);
+            }
+        }
     }
-    
+
+    /**
+     * The most words that speakers may hand over at once to listeners that
+     * are already waiting, beyond this communicator's capacity.
+     */
+    public static final int transferSize = 64;
+
     private Condition spkReady;
     private Condition lstnReady;
     private Lock lock;
-    private int spk=0;
-    private int lstn=0;
-    private int msg;
-    
-    
+
+    private int capacity;
+    private int[] buffer;
+    private int first = 0, count = 0;
+    /** The number of words listeners are still waiting for. */
+    private int wanted = 0;
 }
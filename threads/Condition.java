@@ -2,10 +2,10 @@ package nachos.threads;
 
 import nachos.machine.*;
 
-import java.util.LinkedList;
-
 /**
- * An implementation of condition variables built upon semaphores.
+ * An implementation of condition variables that disables interrupts for
+ * synchronization. Waiting threads are linked through themselves, so
+ * sleeping and waking allocate nothing.
  *
  * <p>
  * A condition variable is a synchronization primitive that does not have
@@ -60,8 +60,6 @@ public class Condition {
      */
     public Condition(Lock conditionLock) {
 	this.conditionLock = conditionLock;
-
-	waitQueue = new LinkedList<Semaphore>();
     }
 
     /**
@@ -71,20 +69,21 @@ public class Condition {
      * automatically reacquire the lock before <tt>sleep()</tt> returns.
      *
      * <p>
-     * This implementation uses semaphores to implement this, by allocating a
-     * semaphore for each waiting thread. The waker will <tt>V()</tt> this
-     * semaphore, so thre is no chance the sleeper will miss the wake-up, even
-     * though the lock is released before caling <tt>P()</tt>.
+     * Interrupts are disabled before the lock is released, so there is no
+     * chance the sleeper will miss the wake-up.
      */
     public void sleep() {
 	Lib.assertTrue(conditionLock.isHeldByCurrentThread());
 
-	Semaphore waiter = new Semaphore(0);
-	waitQueue.add(waiter);
+	boolean intStatus = Machine.interrupt().disable();
 
+	waiters.add(KThread.currentThread());
 	conditionLock.release();
-	waiter.P();
-	conditionLock.acquire();	
+	KThread.sleep();
+
+	Machine.interrupt().restore(intStatus);
+
+	conditionLock.acquire();
     }
 
     /**
@@ -94,8 +93,9 @@ public class Condition {
     public void wake() {
 	Lib.assertTrue(conditionLock.isHeldByCurrentThread());
 
-	if (!waitQueue.isEmpty())
-	    ((Semaphore) waitQueue.removeFirst()).V();
+	boolean intStatus = Machine.interrupt().disable();
+	waiters.wakeFirst();
+	Machine.interrupt().restore(intStatus);
     }
 
     /**
@@ -105,10 +105,11 @@ public class Condition {
     public void wakeAll() {
 	Lib.assertTrue(conditionLock.isHeldByCurrentThread());
 
-	while (!waitQueue.isEmpty())
-	    wake();
+	boolean intStatus = Machine.interrupt().disable();
+	waiters.wakeAll();
+	Machine.interrupt().restore(intStatus);
     }
 
     private Lock conditionLock;
-    private LinkedList<Semaphore> waitQueue;
+    private WaitList waiters = new WaitList();
 }
@@ -1,7 +1,5 @@
 package nachos.threads;
 
-import java.util.LinkedList;
-
 import nachos.machine.*;
 
 /**
@@ -24,7 +22,6 @@ public class Condition2 {
      */
     public Condition2(Lock conditionLock) {
 	this.conditionLock = conditionLock;
-    waitList = new LinkedList<KThread>(); 
     }
 
     /**
@@ -37,12 +34,11 @@ public class Condition2 {
     	
 	Lib.assertTrue(conditionLock.isHeldByCurrentThread());
 
-	//add thread to linkList of waiting threads, release lock,
-	// disable interrupt, sleep thread
-	KThread currentThread = KThread.currentThread();
-	waitList.add(currentThread);
-	conditionLock.release();
+	//disable interrupt, add thread to the list of waiting threads,
+	//release lock, sleep thread
 	boolean setStatus = Machine.interrupt().disable();
+	waitList.add(KThread.currentThread());
+	conditionLock.release();
 	KThread.sleep();
     //restore interrupt, aquire lock
 	Machine.interrupt().restore(setStatus);
@@ -122,20 +118,12 @@ public class Condition2 {
      * current thread must hold the associated lock.
      */
     public void wake() {
-    	System.out.println("Call");
     	Lib.assertTrue(conditionLock.isHeldByCurrentThread());
 	
-	//the idea here is if several threads were added to the
-	//linked list the first thread added would be at the last
-	//index in the list
-	if(waitList.size() > 0){
-		boolean setStatus = Machine.interrupt().disable();
-		KThread thread = waitList.removeFirst();
-		if(thread != null){
-			thread.ready();
-		}
+	//the first thread added is the first one woken
+	boolean setStatus = Machine.interrupt().disable();
+	waitList.wakeFirst();
 	Machine.interrupt().restore(setStatus);
-	}
     }
 
     /**
@@ -143,13 +131,14 @@ public class Condition2 {
      * thread must hold the associated lock.
      */
     public void wakeAll() {
-    	System.out.println("Call");
     	Lib.assertTrue(conditionLock.isHeldByCurrentThread());
-		while(!waitList.isEmpty()){
-			wake();
-		}
+
+	//move every waiting thread to the ready queue at once
+	boolean setStatus = Machine.interrupt().disable();
+	waitList.wakeAll();
+	Machine.interrupt().restore(setStatus);
     }
 
     private Lock conditionLock;
-    private LinkedList<KThread> waitList;
+    private WaitList waitList = new WaitList();
 }
@@ -0,0 +1,132 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+/**
+ * A <tt>CountDownLatch</tt> makes threads wait until a count reaches zero.
+ * Threads calling <tt>await()</tt> wait until other threads have called
+ * <tt>countDown()</tt> as many times as the initial count; the call that
+ * takes the count to zero wakes them all. After that, <tt>await()</tt>
+ * returns immediately. Unlike a <tt>Barrier</tt>, a latch cannot be reset.
+ *
+ * <p>
+ * Waiting threads are linked through themselves, so counting down and
+ * waiting take constant time and allocate nothing, and the last
+ * <tt>countDown()</tt> moves every waiting thread to the ready queue in a
+ * single pass.
+ */
+public class CountDownLatch {
+    /**
+     * Allocate a new countdown latch.
+     *
+     * @param	count	the number of times <tt>countDown()</tt> must be called
+     *			before waiting threads are released.
+     */
+    public CountDownLatch(int count) {
+	Lib.assertTrue(count >= 0);
+
+	this.count = count;
+    }
+
+    /**
+     * Wait until the count reaches zero. Returns immediately if it already
+     * has.
+     */
+    public void await() {
+	if (count == 0)
+	    return;
+
+	boolean intStatus = Machine.interrupt().disable();
+
+	waiters.add(KThread.currentThread());
+	KThread.sleep();
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Decrement the count, and if it reaches zero, wake every waiting thread.
+     * Does nothing if the count is already zero.
+     */
+    public void countDown() {
+	if (count == 0 || --count > 0)
+	    return;
+
+	boolean intStatus = Machine.interrupt().disable();
+	waiters.wakeAll();
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Return the current count. As with a <tt>Semaphore</tt>, the count may
+     * have changed by the time the caller uses it.
+     *
+     * @return	the current count.
+     */
+    public int getCount() {
+	return count;
+    }
+
+    /**
+     * Test if this module is working.
+     */
+    public static void selfTest() {
+	final CountDownLatch start = new CountDownLatch(1);
+	final CountDownLatch done = new CountDownLatch(3);
+	final int[] started = new int[1];
+
+	for (int i=0; i<3; i++) {
+	    new KThread(new Runnable() {
+		    public void run() {
+			start.await();
+			started[0]++;
+			done.countDown();
+		    }
+		}).setName("latch " + i).fork();
+	}
+
+	for (int i=0; i<5; i++)
+	    KThread.yield();
+	Lib.assertTrue(started[0] == 0 && done.getCount() == 3);
+
+	start.countDown();
+	done.await();
+	Lib.assertTrue(started[0] == 3 && done.getCount() == 0);
+
+	done.countDown();
+	done.await();
+    }
+
+    /**
+     * Measure the cost of forking <tt>Barrier.benchmarkThreads</tt> threads,
+     * or as many as the <tt>TCB</tt> backend allows, and waiting for them
+     * all with a latch.
+     */
+    public static void benchmark() {
+	int numThreads =
+	    Math.min(Barrier.benchmarkThreads, TCB.getMaxThreads() - 10);
+	final CountDownLatch done = new CountDownLatch(numThreads);
+
+	long startTicks = Machine.timer().getTime();
+	long startTime = System.nanoTime();
+
+	for (int i=0; i<numThreads; i++) {
+	    new KThread(new Runnable() {
+		    public void run() {
+			done.countDown();
+		    }
+		}).setName("latch").fork();
+	}
+
+	done.await();
+
+	long nanos = System.nanoTime() - startTime;
+	System.out.println("CountDownLatch benchmark: " + numThreads
+			   + " threads, "
+			   + (Machine.timer().getTime() - startTicks)
+			   + " ticks, " + (nanos / numThreads) + " ns/thread");
+    }
+
+    private int count;
+    private WaitList waiters = new WaitList();
+}
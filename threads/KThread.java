@@ -208,7 +208,7 @@ public class KThread {
      * <p>
      * Returns immediately if no other thread is ready to run. Otherwise
      * returns when the current thread is chosen to run again by
-     * <tt>readyQueue.nextThread()</tt>.
+     * <tt>runNextThread()</tt>.
      *
      * <p>
      * Interrupts are disabled, so that the current thread can atomically add
@@ -223,6 +223,10 @@ public class KThread {
 	
 	boolean intStatus = Machine.interrupt().disable();
 
+	// if nothing else can run until an interrupt fires, skip ahead to it
+	if (currentThread == idleThread && numReady == 0)
+	    Machine.interrupt().idle();
+
 	currentThread.ready();
 
 	runNextThread();
@@ -265,8 +269,11 @@ public class KThread {
 	Lib.assertTrue(status != statusReady);
 	
 	status = statusReady;
-	if (this != idleThread)
+	readySince = Machine.timer().getTime();
+	if (this != idleThread) {
 	    readyQueue.waitForAccess(this);
+	    numReady++;
+	}
 	
 	Machine.autoGrader().readyThread(this);
     }
@@ -336,6 +343,8 @@ public class KThread {
 	KThread nextThread = readyQueue.nextThread();
 	if (nextThread == null)
 	    nextThread = idleThread;
+	else
+	    numReady--;
 
 	nextThread.run();
     }
@@ -367,6 +376,17 @@ public class KThread {
 
 	currentThread.saveState();
 
+	if (this != currentThread) {
+	    long time = Machine.timer().getTime();
+	    Machine.autoGrader().switchingThread(
+		(currentThread == idleThread) ? -1 :
+		time - currentThread.runningSince,
+		currentThread.status != statusReady,
+		(this == idleThread) ? -1 : time - readySince,
+		numReady);
+	    runningSince = time;
+	}
+
 	Lib.debug(dbgThread, "Switching from: " + currentThread.toString()
 		  + " to: " + toString());
 
@@ -392,6 +412,8 @@ public class KThread {
 	
 	status = statusRunning;
 
+	ThreadedKernel.scheduler.restoreState(this);
+
 	if (toBeDestroyed != null) {
 	    toBeDestroyed.tcb.destroy();
 	    toBeDestroyed.tcb = null;
@@ -401,28 +423,75 @@ public class KThread {
 
     /**
      * Prepare this thread to give up the processor. Kernel threads do not
-     * need to do anything here.
+     * need to do anything here, other than let the scheduler know.
      */
     protected void saveState() {
 	Lib.assertTrue(Machine.interrupt().disabled());
 	Lib.assertTrue(this == currentThread);
+
+	ThreadedKernel.scheduler.saveState(this);
     }
 
     private static class PingTest implements Runnable {
 	PingTest(int which) {
+	    this(which, 5, true);
+	}
+
+	PingTest(int which, int loops, boolean verbose) {
 	    this.which = which;
+	    this.loops = loops;
+	    this.verbose = verbose;
 	}
 	
 	public void run() {
-	    for (int i=0; i<5; i++) {
-		System.out.println("*** thread " + which + " looped "
-				   + i + " times");
+	    for (int i=0; i<loops; i++) {
+		if (verbose)
+		    System.out.println("*** thread " + which + " looped "
+				       + i + " times");
 		currentThread.yield();
 	    }
 	}
 
 	private int which;
+	private int loops;
+	private boolean verbose;
+    }
+
+    /**
+     * Measure the cost of a context switch, by having two threads yield to
+     * each other <tt>benchmarkLoops</tt> times each. Run this with each
+     * <tt>TCB</tt> backend to compare them.
+     */
+    public static void benchmark() {
+	long startTicks = Machine.timer().getTime();
+	long startTime = System.nanoTime();
+
+	new KThread(new PingTest(1, benchmarkLoops, false))
+	    .setName("ping").fork();
+	new PingTest(0, benchmarkLoops, false).run();
+
+	printBenchmark("KThread", 2*benchmarkLoops,
+		       Machine.timer().getTime() - startTicks,
+		       System.nanoTime() - startTime);
     }
+
+    /**
+     * Print the result of a context switch benchmark.
+     *
+     * @param	name	the name of the benchmark.
+     * @param	switches	the number of context switches measured.
+     * @param	ticks	the number of simulated ticks they took.
+     * @param	nanos	the number of real nanoseconds they took.
+     */
+    static void printBenchmark(String name, int switches, long ticks,
+			       long nanos) {
+	System.out.println(name + " benchmark: " + switches + " switches, "
+			   + ticks + " ticks, "
+			   + (nanos / switches) + " ns/switch");
+    }
+
+    /** The number of times each thread yields in <tt>benchmark()</tt>. */
+    static final int benchmarkLoops = 10000;
     /**
      * Tests whether this module is working.
      */
@@ -454,6 +523,18 @@ public class KThread {
      */
     public Object schedulingState = null;
 
+    /**
+     * The next thread on the <tt>WaitList</tt> this thread is blocked on, if
+     * any.
+     */
+    KThread waitNext = null;
+
+    /**
+     * The number of units this thread is waiting for in
+     * <tt>Semaphore.P()</tt>.
+     */
+    int permitsWanted = 0;
+
     private static final int statusNew = 0;
     private static final int statusReady = 1;
     private static final int statusRunning = 2;
@@ -478,7 +559,14 @@ public class KThread {
     /** Number of times the KThread constructor was called. */
     private static int numCreated = 0;
 
+    /** When this thread last became ready. */
+    private long readySince = 0;
+    /** When this thread last started running. */
+    private long runningSince = 0;
+
     private static ThreadQueue readyQueue = null;
+    /** Number of threads waiting on <tt>readyQueue</tt>. */
+    private static int numReady = 0;
     private static KThread currentThread = null;
     private static KThread toBeDestroyed = null;
     private static KThread idleThread = null;
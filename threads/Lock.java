@@ -18,6 +18,13 @@ import nachos.machine.*;
  * Also, only the thread that acquired a lock may release it. As with
  * semaphores, the API does not allow you to read the lock state (because the
  * value could change immediately after you read it).
+ *
+ * <p>
+ * Acquiring a free lock, and releasing a lock no thread is waiting for, only
+ * touch <tt>lockHolder</tt>. This is atomic without disabling interrupts,
+ * because neither the test nor the update can cause a context switch. The
+ * wait queue is told which thread holds the lock only if the scheduler
+ * donates priority, since only then does it need to know.
  */
 public class Lock {
     /**
@@ -33,10 +40,17 @@ public class Lock {
     public void acquire() {
 	Lib.assertTrue(!isHeldByCurrentThread());
 
-	boolean intStatus = Machine.interrupt().disable();
 	KThread thread = KThread.currentThread();
 
+	if (lockHolder == null && !donatesPriority) {
+	    lockHolder = thread;
+	    return;
+	}
+
+	boolean intStatus = Machine.interrupt().disable();
+
 	if (lockHolder != null) {
+	    numWaiting++;
 	    waitQueue.waitForAccess(thread);
 	    KThread.sleep();
 	}
@@ -56,10 +70,17 @@ public class Lock {
     public void release() {
 	Lib.assertTrue(isHeldByCurrentThread());
 
+	if (numWaiting == 0 && !donatesPriority) {
+	    lockHolder = null;
+	    return;
+	}
+
 	boolean intStatus = Machine.interrupt().disable();
 
-	if ((lockHolder = waitQueue.nextThread()) != null)
+	if ((lockHolder = waitQueue.nextThread()) != null) {
+	    numWaiting--;
 	    lockHolder.ready();
+	}
 	
 	Machine.interrupt().restore(intStatus);
     }
@@ -74,6 +95,10 @@ public class Lock {
     }
 
     private KThread lockHolder = null;
+    /** The number of threads waiting on <tt>waitQueue</tt>. */
+    private int numWaiting = 0;
+    private boolean donatesPriority =
+	ThreadedKernel.scheduler.donatesPriority();
     private ThreadQueue waitQueue =
 	ThreadedKernel.scheduler.newThreadQueue(true);
 }
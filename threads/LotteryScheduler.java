@@ -2,10 +2,6 @@ package nachos.threads;
 
 import nachos.machine.*;
 
-import java.util.TreeSet;
-import java.util.HashSet;
-import java.util.Iterator;
-
 /**
  * A scheduler that chooses threads using a lottery.
  *
@@ -25,14 +21,18 @@ import java.util.Iterator;
  * particular, tickets must be transferred through locks, and through joins.
  * Unlike a priority scheduler, these tickets add (as opposed to just taking
  * the maximum).
+ *
+ * <p>
+ * Each queue keeps the tickets of its waiting threads in a Fenwick tree, so
+ * drawing a winner and changing a thread's tickets both take O(log n) time.
  */
-public class LotteryScheduler extends PriorityScheduler {
+public class LotteryScheduler extends TicketScheduler {
     /**
      * Allocate a new lottery scheduler.
      */
     public LotteryScheduler() {
     }
-    
+
     /**
      * Allocate a new lottery thread queue.
      *
@@ -42,7 +42,240 @@ public class LotteryScheduler extends PriorityScheduler {
      * @return	a new lottery thread queue.
      */
     public ThreadQueue newThreadQueue(boolean transferPriority) {
-	// implement me
-	return null;
+	return new LotteryQueue(transferPriority);
+    }
+
+    /**
+     * Test if this module is working.
+     */
+    public static void selfTest() {
+	LotteryScheduler scheduler = new LotteryScheduler();
+	ThreadQueue queue = scheduler.newThreadQueue(false);
+	KThread[] threads = new KThread[4];
+
+	boolean intStatus = Machine.interrupt().disable();
+
+	for (int i=0; i<threads.length; i++) {
+	    threads[i] = new KThread().setName("lottery " + i);
+	    scheduler.setPriority(threads[i], 1 << (2*i));
+	}
+
+	/* Threads with 1, 4, 16, and 64 tickets should win in about that
+	 * proportion.
+	 */
+	int[] wins = new int[threads.length];
+	for (int i=0; i<threads.length; i++)
+	    queue.waitForAccess(threads[i]);
+	for (int i=0; i<8500; i++) {
+	    KThread winner = queue.nextThread();
+	    wins[Integer.numberOfTrailingZeros(scheduler.getPriority(winner))/2]++;
+	    queue.waitForAccess(winner);
+	}
+	for (int i=0; i<threads.length; i++) {
+	    int expected = 100 << (2*i);
+	    Lib.assertTrue(Math.abs(wins[i] - expected) < expected/2 + 50);
+	    queue.nextThread();
+	}
+	Lib.assertTrue(queue.nextThread() == null);
+
+	/* Tickets add up along a chain of locks: threads[0] holds a lock
+	 * that threads[1] waits for, while threads[1] holds a lock that
+	 * threads[2] and threads[3] wait for.
+	 */
+	ThreadQueue lock0 = scheduler.newThreadQueue(true);
+	ThreadQueue lock1 = scheduler.newThreadQueue(true);
+
+	lock0.acquire(threads[0]);
+	lock1.acquire(threads[1]);
+	lock0.waitForAccess(threads[1]);
+	lock1.waitForAccess(threads[2]);
+	lock1.waitForAccess(threads[3]);
+	Lib.assertTrue(scheduler.getEffectivePriority(threads[0]) == 85);
+	Lib.assertTrue(scheduler.getEffectivePriority(threads[1]) == 84);
+
+	scheduler.setPriority(threads[3], 1);
+	Lib.assertTrue(scheduler.getEffectivePriority(threads[0]) == 22);
+
+	Lib.assertTrue(lock0.nextThread() == threads[1]);
+	Lib.assertTrue(scheduler.getEffectivePriority(threads[0]) == 1);
+	Lib.assertTrue(scheduler.getEffectivePriority(threads[1]) == 21);
+	lock1.nextThread();
+	lock1.nextThread();
+	Lib.assertTrue(scheduler.getEffectivePriority(threads[1]) == 4);
+	Lib.assertTrue(lock0.nextThread() == null);
+	Lib.assertTrue(lock1.nextThread() == null);
+
+	Machine.interrupt().restore(intStatus);
+
+	for (int i=0; i<threads.length; i++)
+	    threads[i].schedulingState = null;
+    }
+
+    /**
+     * Return the scheduling state of the specified thread.
+     *
+     * @param	thread	the thread whose scheduling state to return.
+     * @return	the scheduling state of the specified thread.
+     */
+    protected LotteryState getThreadState(KThread thread) {
+	if (thread.schedulingState == null)
+	    thread.schedulingState = new LotteryState(thread);
+
+	return (LotteryState) thread.schedulingState;
+    }
+
+    /**
+     * A <tt>ThreadQueue</tt> that holds a lottery among its waiting threads.
+     */
+    protected class LotteryQueue extends TicketQueue {
+	LotteryQueue(boolean transferPriority) {
+	    super(transferPriority);
+	}
+
+	/**
+	 * Hold the lottery, without modifying the state of this queue.
+	 *
+	 * @return	the winner, or <tt>null</tt> if no threads are waiting.
+	 */
+	protected LotteryState pickNextThread() {
+	    if (numWaiting == 0)
+		return null;
+
+	    long winningTicket;
+	    if (total <= Integer.MAX_VALUE)
+		winningTicket = Lib.random((int) total);
+	    else
+		winningTicket = (long) (Lib.random() * total);
+
+	    return waiting[find(winningTicket)];
+	}
+
+	/**
+	 * Give the specified thread a slot in this queue.
+	 */
+	void add(TicketState ticketState) {
+	    LotteryState state = (LotteryState) ticketState;
+
+	    if (numWaiting == waiting.length)
+		grow();
+
+	    /* Slots freed by remove() are reused first, so the tree only
+	     * grows with the number of threads waiting at once.
+	     */
+	    int slot = (numFree > 0) ? free[--numFree] : numWaiting;
+	    numWaiting++;
+
+	    waiting[slot] = state;
+	    state.slot = slot;
+	    update(slot, state.getTickets());
+	}
+
+	/**
+	 * Take the specified thread out of this queue.
+	 */
+	void remove(TicketState ticketState) {
+	    LotteryState state = (LotteryState) ticketState;
+
+	    update(state.slot, -state.getTickets());
+
+	    waiting[state.slot] = null;
+	    free[numFree++] = state.slot;
+	    numWaiting--;
+	}
+
+	void ticketsChanged(TicketState state, long delta) {
+	    update(((LotteryState) state).slot, delta);
+	}
+
+	/**
+	 * Add <i>delta</i> tickets to the specified slot.
+	 */
+	void update(int slot, long delta) {
+	    total += delta;
+
+	    for (int i=slot+1; i<=waiting.length; i+=(i & -i))
+		tree[i] += delta;
+	}
+
+	/**
+	 * Find the slot holding the specified ticket, by descending the tree.
+	 *
+	 * @param	ticket	a ticket number, less than <tt>total</tt>.
+	 * @return	the slot whose tickets include that ticket.
+	 */
+	private int find(long ticket) {
+	    int index = 0;
+
+	    for (int step=Integer.highestOneBit(waiting.length); step>0;
+		 step>>=1) {
+		if (index+step <= waiting.length && tree[index+step] <= ticket) {
+		    index += step;
+		    ticket -= tree[index];
+		}
+	    }
+
+	    return index;
+	}
+
+	/**
+	 * Double the number of slots, and rebuild the tree.
+	 */
+	private void grow() {
+	    int size = waiting.length * 2;
+
+	    LotteryState[] oldWaiting = waiting;
+	    waiting = new LotteryState[size];
+	    System.arraycopy(oldWaiting, 0, waiting, 0, oldWaiting.length);
+
+	    int[] oldFree = free;
+	    free = new int[size];
+	    System.arraycopy(oldFree, 0, free, 0, numFree);
+
+	    tree = new long[size+1];
+	    total = 0;
+	    for (int i=0; i<oldWaiting.length; i++) {
+		if (waiting[i] != null)
+		    update(i, waiting[i].getTickets());
+	    }
+	}
+
+	public void print() {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    for (int i=0; i<waiting.length; i++) {
+		if (waiting[i] != null)
+		    System.out.print(waiting[i].thread + " ");
+	    }
+	}
+
+	/** The waiting thread in each slot, or <tt>null</tt>. */
+	private LotteryState[] waiting = new LotteryState[initialSlots];
+	/** The Fenwick tree over the tickets in each slot, 1-indexed. */
+	private long[] tree = new long[initialSlots+1];
+	private int numWaiting = 0;
+	/** Empty slots below <tt>numWaiting + numFree</tt>. */
+	private int[] free = new int[initialSlots];
+	private int numFree = 0;
+    }
+
+    private static final int initialSlots = 8;
+
+    /**
+     * The scheduling state of a thread in a lottery scheduler. The priority
+     * of the thread is its number of tickets.
+     */
+    protected class LotteryState extends TicketState {
+	/**
+	 * Allocate a new <tt>LotteryState</tt> object and associate it with
+	 * the specified thread.
+	 *
+	 * @param	thread	the thread this state belongs to.
+	 */
+	public LotteryState(KThread thread) {
+	    super(thread);
+	}
+
+	/** The associated thread's slot in <tt>waitingOn</tt>. */
+	int slot;
     }
 }
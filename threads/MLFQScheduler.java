@@ -0,0 +1,273 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+/**
+ * A multi-level feedback queue scheduler.
+ *
+ * <p>
+ * Each priority is a level of the feedback queue, and threads at the same
+ * level are served in FIFO order, exactly as in a priority scheduler. What
+ * differs is that the scheduler sets priorities itself:
+ *
+ * <ul>
+ * <li>A new thread starts at the top level, <tt>priorityMaximum</tt>.
+ * <li>A thread at priority <i>p</i> may run for <tt>getQuantum(</tt><i>p</i>
+ * <tt>)</tt> timer interrupts before it is preempted. If it uses its whole
+ * quantum, it drops one level.
+ * <li>A thread that blocks, and is then woken by another thread, rises one
+ * level and starts a fresh quantum. If that puts it above the current thread,
+ * the current thread is preempted at the next timer interrupt, even if its
+ * quantum is not used up.
+ * <li>Every <tt>boostInterval</tt> timer interrupts, every thread goes back to
+ * the top level, so that CPU-bound threads cannot starve.
+ * </ul>
+ *
+ * <p>
+ * So interactive threads, which mostly wait on the console or on other
+ * threads, stay near the top, while threads that never block sink to the
+ * bottom and run in long slices when nothing else wants the processor.
+ * Priority is still donated through locks.
+ */
+public class MLFQScheduler extends PriorityScheduler {
+    /**
+     * Allocate a new MLFQ scheduler.
+     */
+    public MLFQScheduler() {
+    }
+
+    /**
+     * Allocate a new feedback thread queue.
+     *
+     * @param	transferPriority	<tt>true</tt> if this queue should
+     *					transfer priority from waiting threads
+     *					to the owning thread.
+     * @return	a new feedback thread queue.
+     */
+    public ThreadQueue newThreadQueue(boolean transferPriority) {
+	return new FeedbackQueue(transferPriority);
+    }
+
+    /**
+     * Charge the current thread one timer interrupt of its quantum, and
+     * demote it if the quantum is used up.
+     *
+     * @return	<tt>true</tt> if the current thread's quantum is used up, or
+     *		a thread above it has been woken.
+     */
+    public boolean timerInterrupt() {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	if (++numTimerInterrupts % boostInterval == 0)
+	    numBoosts++;
+
+	FeedbackState state = getThreadState(KThread.currentThread());
+	state.checkBoost();
+
+	boolean preempt = wokenAbove;
+	wokenAbove = false;
+
+	if (++state.used < getQuantum(state.priority))
+	    return preempt;
+
+	state.used = 0;
+	if (state.priority > priorityMinimum)
+	    state.setPriority(state.priority-1);
+
+	return true;
+    }
+
+    /**
+     * Return the number of timer interrupts a thread at the specified level
+     * may run for before it is preempted.
+     *
+     * @param	priority	the level.
+     * @return	the quantum for that level.
+     */
+    public static int getQuantum(int priority) {
+	return priorityMaximum - priority + 1;
+    }
+
+    /**
+     * The number of timer interrupts between priority boosts.
+     */
+    public static final int boostInterval = 200;
+
+    /**
+     * Test if this module is working.
+     */
+    public static void selfTest() {
+	MLFQScheduler scheduler = new MLFQScheduler();
+	ThreadQueue queue = scheduler.newThreadQueue(false);
+	KThread current = KThread.currentThread();
+	KThread other = new KThread().setName("mlfq");
+
+	boolean intStatus = Machine.interrupt().disable();
+
+	Object savedState = current.schedulingState;
+	current.schedulingState = null;
+
+	// a thread that keeps running sinks one level per quantum
+	for (int p=priorityMaximum; p>priorityMinimum; p--) {
+	    for (int i=1; i<getQuantum(p); i++)
+		Lib.assertTrue(!scheduler.timerInterrupt());
+	    Lib.assertTrue(scheduler.timerInterrupt());
+	    Lib.assertTrue(scheduler.getPriority(current) == p-1);
+	}
+
+	// a thread woken by another thread rises one level
+	scheduler.setPriority(other, priorityMinimum);
+	queue.waitForAccess(other);
+	Lib.assertTrue(scheduler.getPriority(other) == priorityMinimum+1);
+
+	// after a boost, every thread is back at the top
+	while (scheduler.numBoosts == 0)
+	    scheduler.timerInterrupt();
+	Lib.assertTrue(queue.nextThread() == other);
+	Lib.assertTrue(scheduler.getPriority(other) == priorityMaximum);
+
+	current.schedulingState = savedState;
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Return the scheduling state of the specified thread.
+     *
+     * @param	thread	the thread whose scheduling state to return.
+     * @return	the scheduling state of the specified thread.
+     */
+    protected FeedbackState getThreadState(KThread thread) {
+	if (thread.schedulingState == null)
+	    thread.schedulingState = new FeedbackState(thread);
+
+	return (FeedbackState) thread.schedulingState;
+    }
+
+    /**
+     * A <tt>PriorityQueue</tt> that adjusts the levels of the threads that
+     * wait on it.
+     */
+    protected class FeedbackQueue extends PriorityQueue {
+	FeedbackQueue(boolean transferPriority) {
+	    super(transferPriority);
+	}
+
+	/**
+	 * Add a thread to this queue. A thread that is not the current thread
+	 * is being woken up (or started) by the current thread, so it gets
+	 * promoted.
+	 */
+	public void waitForAccess(KThread thread) {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    FeedbackState state = getThreadState(thread);
+	    state.checkBoost();
+	    if (thread != KThread.currentThread()) {
+		state.promote();
+
+		if (state.effectivePriority >
+		    getThreadState(KThread.currentThread()).effectivePriority)
+		    wokenAbove = true;
+	    }
+
+	    super.waitForAccess(thread);
+	}
+
+	public KThread nextThread() {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    boostWaiters();
+
+	    return super.nextThread();
+	}
+
+	/**
+	 * Move every waiting thread to the top level, if there has been a
+	 * boost since the last time this queue was served. Queues are boosted
+	 * lazily like this so that no list of queues has to be kept.
+	 */
+	private void boostWaiters() {
+	    if (boosted == numBoosts)
+		return;
+
+	    boosted = numBoosts;
+
+	    int numWaiting = 0;
+	    for (int i=priorityMinimum; i<priorityMaximum; i++) {
+		for (ThreadState state=first[i]; state!=null;
+		     state=state.nextWaiter)
+		    numWaiting++;
+	    }
+	    if (numWaiting == 0)
+		return;
+
+	    FeedbackState[] waiting = new FeedbackState[numWaiting];
+	    numWaiting = 0;
+	    for (int i=priorityMinimum; i<priorityMaximum; i++) {
+		for (ThreadState state=first[i]; state!=null;
+		     state=state.nextWaiter)
+		    waiting[numWaiting++] = (FeedbackState) state;
+	    }
+
+	    for (int i=0; i<waiting.length; i++)
+		waiting[i].checkBoost();
+	}
+
+	/** The value of <tt>numBoosts</tt> when this queue was last boosted. */
+	private long boosted = 0;
+    }
+
+    /**
+     * The scheduling state of a thread in an MLFQ scheduler.
+     */
+    protected class FeedbackState extends ThreadState {
+	/**
+	 * Allocate a new <tt>FeedbackState</tt> object and associate it with
+	 * the specified thread. The thread starts at the top level.
+	 *
+	 * @param	thread	the thread this state belongs to.
+	 */
+	public FeedbackState(KThread thread) {
+	    super(thread);
+
+	    priority = effectivePriority = priorityMaximum;
+	    boosted = numBoosts;
+	}
+
+	/**
+	 * Move the associated thread up one level, with a fresh quantum.
+	 */
+	void promote() {
+	    used = 0;
+	    if (priority < priorityMaximum)
+		setPriority(priority+1);
+	}
+
+	/**
+	 * Move the associated thread to the top level if there has been a
+	 * boost since it was last checked.
+	 */
+	void checkBoost() {
+	    if (boosted == numBoosts)
+		return;
+
+	    boosted = numBoosts;
+	    used = 0;
+	    setPriority(priorityMaximum);
+	}
+
+	/** Timer interrupts used of the current quantum. */
+	int used = 0;
+	/** The value of <tt>numBoosts</tt> when last checked. */
+	long boosted;
+    }
+
+    /**
+     * <tt>true</tt> if a thread has been woken at a higher level than the
+     * current thread since the last timer interrupt.
+     */
+    private boolean wokenAbove = false;
+    private long numTimerInterrupts = 0;
+    private long numBoosts = 0;
+}
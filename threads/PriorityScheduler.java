@@ -2,10 +2,6 @@ package nachos.threads;
 
 import nachos.machine.*;
 
-import java.util.TreeSet;
-import java.util.HashSet;
-import java.util.Iterator;
-
 /**
  * A scheduler that chooses threads based on their priorities.
  *
@@ -25,6 +21,18 @@ import java.util.Iterator;
  * <p>
  * A priority scheduler must partially solve the priority inversion problem; in
  * particular, priority must be donated through locks, and through joins.
+ *
+ * <p>
+ * Each queue keeps one FIFO per priority level, linked through the threads'
+ * scheduling states, and a bitmap of the levels that are not empty, so the
+ * highest waiting priority is found, and a thread is added or removed, in
+ * constant time. A thread whose effective priority changes while it waits is
+ * put back among the threads that arrived around the same time, which takes
+ * a search back from the end of its new level. Effective priorities are
+ * cached. Each thread counts the queues it owns
+ * by their top waiting priority, so a donation is added, moved, or withdrawn
+ * in constant time, and passed on along the chain of owners only as far as it
+ * keeps changing effective priorities.
  */
 public class PriorityScheduler extends Scheduler {
     /**
@@ -109,6 +117,81 @@ public class PriorityScheduler extends Scheduler {
      */
     public static final int priorityMaximum = 7;    
 
+    /**
+     * Test if this module is working.
+     */
+    public static void selfTest() {
+	PriorityScheduler scheduler = new PriorityScheduler();
+	ThreadQueue queue = scheduler.newThreadQueue(false);
+	int[] priorities = { 3, 7, 0, 3, 5, 1, 7, 3 };
+	KThread[] threads = new KThread[priorities.length];
+
+	boolean intStatus = Machine.interrupt().disable();
+
+	for (int i=0; i<threads.length; i++) {
+	    threads[i] = new KThread().setName("priority " + priorities[i]);
+	    scheduler.setPriority(threads[i], priorities[i]);
+	    queue.waitForAccess(threads[i]);
+	}
+
+	/* Threads must come out highest priority first, and in the order
+	 * they arrived among threads of the same priority.
+	 */
+	int[] order = { 1, 6, 4, 0, 3, 7, 5, 2 };
+	for (int i=0; i<order.length; i++)
+	    Lib.assertTrue(queue.nextThread() == threads[order[i]]);
+	Lib.assertTrue(queue.nextThread() == null);
+
+	/* A thread that changes level while waiting goes back in arrival
+	 * order among the threads of its new level.
+	 */
+	queue.waitForAccess(threads[0]);
+	queue.waitForAccess(threads[4]);
+	queue.waitForAccess(threads[3]);
+	scheduler.setPriority(threads[0], 5);
+	scheduler.setPriority(threads[4], 3);
+	Lib.assertTrue(queue.nextThread() == threads[0]);
+	Lib.assertTrue(queue.nextThread() == threads[4]);
+	Lib.assertTrue(queue.nextThread() == threads[3]);
+	scheduler.setPriority(threads[0], priorities[0]);
+	scheduler.setPriority(threads[4], priorities[4]);
+
+	/* Priority inversion through a chain of two locks: threads[2]
+	 * (priority 0) holds a lock that threads[4] (priority 5) waits for,
+	 * while threads[4] holds a lock that threads[1] (priority 7) waits
+	 * for.
+	 */
+	ThreadQueue lock0 = scheduler.newThreadQueue(true);
+	ThreadQueue lock1 = scheduler.newThreadQueue(true);
+
+	lock0.acquire(threads[2]);
+	lock1.acquire(threads[4]);
+	lock0.waitForAccess(threads[4]);
+	Lib.assertTrue(scheduler.getEffectivePriority(threads[2]) == 5);
+	lock1.waitForAccess(threads[1]);
+	Lib.assertTrue(scheduler.getEffectivePriority(threads[2]) == 7);
+	Lib.assertTrue(scheduler.getEffectivePriority(threads[4]) == 7);
+
+	// dropping the donor's own priority changes nothing it donated
+	scheduler.setPriority(threads[1], 6);
+	Lib.assertTrue(scheduler.getEffectivePriority(threads[2]) == 6);
+	scheduler.setPriority(threads[1], 7);
+
+	// each release withdraws exactly the donation of the released lock
+	Lib.assertTrue(lock0.nextThread() == threads[4]);
+	Lib.assertTrue(scheduler.getEffectivePriority(threads[2]) == 0);
+	Lib.assertTrue(scheduler.getEffectivePriority(threads[4]) == 7);
+	Lib.assertTrue(lock1.nextThread() == threads[1]);
+	Lib.assertTrue(scheduler.getEffectivePriority(threads[4]) == 5);
+	Lib.assertTrue(lock0.nextThread() == null);
+	Lib.assertTrue(lock1.nextThread() == null);
+
+	Machine.interrupt().restore(intStatus);
+
+	for (int i=0; i<threads.length; i++)
+	    threads[i].schedulingState = null;
+    }
+
     /**
      * Return the scheduling state of the specified thread.
      *
@@ -142,8 +225,19 @@ public class PriorityScheduler extends Scheduler {
 
 	public KThread nextThread() {
 	    Lib.assertTrue(Machine.interrupt().disabled());
-	    // implement me
-	    return null;
+
+	    if (owner != null)
+		owner.release(this);
+
+	    ThreadState next = pickNextThread();
+	    if (next == null)
+		return null;
+
+	    remove(next);
+	    next.waitQueue = null;
+	    next.acquire(this);
+
+	    return next.thread;
 	}
 
 	/**
@@ -154,13 +248,95 @@ public class PriorityScheduler extends Scheduler {
 	 *		return.
 	 */
 	protected ThreadState pickNextThread() {
-	    // implement me
-	    return null;
+	    int level = getTopPriority();
+	    if (level < priorityMinimum)
+		return null;
+
+	    return first[level];
+	}
+
+	/**
+	 * Return the highest effective priority of any thread waiting on this
+	 * queue.
+	 *
+	 * @return	the highest waiting priority, or
+	 *		<tt>priorityMinimum-1</tt> if no threads are waiting.
+	 */
+	int getTopPriority() {
+	    return 31 - Integer.numberOfLeadingZeros(nonEmpty);
+	}
+
+	/**
+	 * Add a thread to the FIFO for its effective priority. Threads that
+	 * change level keep their place among the threads that arrived
+	 * around the same time, so it is found by searching back from the end.
+	 */
+	void add(ThreadState state) {
+	    int level = state.effectivePriority;
+
+	    ThreadState prev = last[level];
+	    while (prev != null && prev.waitTime > state.waitTime)
+		prev = prev.prevWaiter;
+	    ThreadState next = (prev == null) ? first[level] : prev.nextWaiter;
+
+	    state.prevWaiter = prev;
+	    state.nextWaiter = next;
+	    if (prev == null)
+		first[level] = state;
+	    else
+		prev.nextWaiter = state;
+	    if (next == null)
+		last[level] = state;
+	    else
+		next.prevWaiter = state;
+
+	    nonEmpty |= 1 << level;
+	}
+
+	/**
+	 * Pass a change in the top waiting priority of this queue on to its
+	 * owner, if this queue transfers priority.
+	 *
+	 * @param	oldTop	the top waiting priority before the change.
+	 */
+	void topChanged(int oldTop) {
+	    if (owner == null)
+		return;
+
+	    int top = getTopPriority();
+	    if (top != oldTop)
+		owner.changeDonation(oldTop, top);
+	}
+
+	/**
+	 * Remove a waiting thread from the FIFO for its effective priority.
+	 */
+	void remove(ThreadState state) {
+	    int level = state.effectivePriority;
+
+	    if (state.prevWaiter == null)
+		first[level] = state.nextWaiter;
+	    else
+		state.prevWaiter.nextWaiter = state.nextWaiter;
+	    if (state.nextWaiter == null)
+		last[level] = state.prevWaiter;
+	    else
+		state.nextWaiter.prevWaiter = state.prevWaiter;
+
+	    state.prevWaiter = state.nextWaiter = null;
+
+	    if (first[level] == null)
+		nonEmpty &= ~(1 << level);
 	}
 	
 	public void print() {
 	    Lib.assertTrue(Machine.interrupt().disabled());
-	    // implement me (if you want)
+
+	    for (int i=priorityMaximum; i>=priorityMinimum; i--) {
+		for (ThreadState state=first[i]; state!=null;
+		     state=state.nextWaiter)
+		    System.out.print(state.thread + " ");
+	    }
 	}
 
 	/**
@@ -168,6 +344,21 @@ public class PriorityScheduler extends Scheduler {
 	 * threads to the owning thread.
 	 */
 	public boolean transferPriority;
+	/**
+	 * The thread that last acquired this queue, if it transfers priority
+	 * and that thread has not released it yet.
+	 */
+	ThreadState owner = null;
+
+	/**
+	 * The first and last waiting threads of each effective priority. The
+	 * threads in between are linked through <tt>nextWaiter</tt> and
+	 * <tt>prevWaiter</tt>, in FIFO order.
+	 */
+	protected ThreadState[] first = new ThreadState[priorityMaximum+1];
+	protected ThreadState[] last = new ThreadState[priorityMaximum+1];
+	/** Bit <i>p</i> is set iff <tt>first[p]</tt> is not <tt>null</tt>. */
+	protected int nonEmpty = 0;
     }
 
     /**
@@ -186,8 +377,8 @@ public class PriorityScheduler extends Scheduler {
 	 */
 	public ThreadState(KThread thread) {
 	    this.thread = thread;
-	    
-	    setPriority(priorityDefault);
+
+	    priority = effectivePriority = priorityDefault;
 	}
 
 	/**
@@ -205,8 +396,7 @@ public class PriorityScheduler extends Scheduler {
 	 * @return	the effective priority of the associated thread.
 	 */
 	public int getEffectivePriority() {
-	    // implement me
-	    return priority;
+	    return effectivePriority;
 	}
 
 	/**
@@ -220,7 +410,7 @@ public class PriorityScheduler extends Scheduler {
 	    
 	    this.priority = priority;
 	    
-	    // implement me
+	    updateEffectivePriority();
 	}
 
 	/**
@@ -236,7 +426,14 @@ public class PriorityScheduler extends Scheduler {
 	 * @see	nachos.threads.ThreadQueue#waitForAccess
 	 */
 	public void waitForAccess(PriorityQueue waitQueue) {
-	    // implement me
+	    Lib.assertTrue(this.waitQueue == null);
+
+	    this.waitQueue = waitQueue;
+	    waitTime = numWaits++;
+
+	    int top = waitQueue.getTopPriority();
+	    waitQueue.add(this);
+	    waitQueue.topChanged(top);
 	}
 
 	/**
@@ -250,12 +447,92 @@ public class PriorityScheduler extends Scheduler {
 	 * @see	nachos.threads.ThreadQueue#nextThread
 	 */
 	public void acquire(PriorityQueue waitQueue) {
-	    // implement me
-	}	
+	    if (!waitQueue.transferPriority)
+		return;
+
+	    if (waitQueue.owner != null)
+		waitQueue.owner.release(waitQueue);
+
+	    waitQueue.owner = this;
+	    changeDonation(priorityMinimum-1, waitQueue.getTopPriority());
+	}
+
+	/**
+	 * Called when the associated thread no longer owns
+	 * <tt>waitQueue</tt>, so it stops receiving its donation.
+	 */
+	void release(PriorityQueue waitQueue) {
+	    Lib.assertTrue(waitQueue.owner == this);
+
+	    waitQueue.owner = null;
+	    changeDonation(waitQueue.getTopPriority(), priorityMinimum-1);
+	}
+
+	/**
+	 * Move one owned queue's donation from one priority to another.
+	 * <tt>priorityMinimum-1</tt> stands for no donation.
+	 *
+	 * @param	from	the priority donated until now.
+	 * @param	to	the priority donated from now on.
+	 */
+	void changeDonation(int from, int to) {
+	    if (from >= priorityMinimum && --donations[from] == 0)
+		donated &= ~(1 << from);
+	    if (to >= priorityMinimum && donations[to]++ == 0)
+		donated |= 1 << to;
+
+	    updateEffectivePriority();
+	}
+
+	/**
+	 * Recompute the effective priority of the associated thread from its
+	 * own priority and the highest priority donated to it. If it changed,
+	 * move the thread to its new level in the queue it is waiting on, and
+	 * pass the change on to that queue's owner.
+	 */
+	void updateEffectivePriority() {
+	    int effective = Math.max(priority,
+				     31 - Integer.numberOfLeadingZeros(donated));
+
+	    if (effective == effectivePriority)
+		return;
+
+	    if (waitQueue == null) {
+		effectivePriority = effective;
+		return;
+	    }
+
+	    int top = waitQueue.getTopPriority();
+	    waitQueue.remove(this);
+	    effectivePriority = effective;
+	    waitQueue.add(this);
+	    waitQueue.topChanged(top);
+	}
 
 	/** The thread with which this object is associated. */	   
 	protected KThread thread;
 	/** The priority of the associated thread. */
 	protected int priority;
+	/** The cached effective priority of the associated thread. */
+	protected int effectivePriority;
+	/** The queue the associated thread is waiting on, if any. */
+	protected PriorityQueue waitQueue = null;
+	/**
+	 * The number of queues owned by the associated thread whose top
+	 * waiting priority is each priority.
+	 */
+	protected int[] donations = new int[priorityMaximum+1];
+	/** Bit <i>p</i> is set iff <tt>donations[p]</tt> is not zero. */
+	protected int donated = 0;
+	/** When the associated thread started waiting on <tt>waitQueue</tt>. */
+	long waitTime;
+	/**
+	 * The threads before and after the associated thread in its level of
+	 * <tt>waitQueue</tt>.
+	 */
+	ThreadState prevWaiter = null, nextWaiter = null;
     }
+
+    /** The number of times any thread has waited on a queue. */
+    private long numWaits = 0;
 }
@@ -0,0 +1,409 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+/**
+ * A <tt>ReadWriteLock</tt> is a lock that can be held either by any number of
+ * <i>readers</i> at once, or by a single <i>writer</i>:
+ *
+ * <ul>
+ * <li><tt>acquireRead()</tt>: wait until no thread holds the lock for writing
+ * and no thread is waiting to, then hold it for reading.
+ * <li><tt>acquireWrite()</tt>: wait until no thread holds the lock, then hold
+ * it for writing.
+ * <li><tt>releaseRead()</tt>, <tt>releaseWrite()</tt>: give up the lock.
+ * </ul>
+ *
+ * <p>
+ * Writers are preferred: once a writer is waiting, new readers wait behind
+ * it. When a writer releases the lock it hands it to the next waiting writer
+ * if there is one, and otherwise lets every waiting reader in at once.
+ *
+ * <p>
+ * If the scheduler donates priority, waiting threads donate to the writer
+ * holding the lock, or to one of the readers holding it; when that reader
+ * releases the lock, the donation moves to another. As with <tt>Lock</tt>,
+ * uncontended operations under a scheduler that does not donate only touch
+ * this lock's own fields.
+ */
+public class ReadWriteLock {
+    /**
+     * Allocate a new readers-writer lock. The lock will initially be free.
+     */
+    public ReadWriteLock() {
+    }
+
+    /**
+     * Atomically acquire this lock for reading. The current thread must not
+     * already hold this lock.
+     */
+    public void acquireRead() {
+	KThread thread = KThread.currentThread();
+	Lib.assertTrue(writer != thread);
+
+	if (writer == null && numWaitingWriters == 0 && !donatesPriority) {
+	    addReader(thread);
+	    return;
+	}
+
+	boolean intStatus = Machine.interrupt().disable();
+
+	if (writer != null || numWaitingWriters > 0) {
+	    numWaitingReaders++;
+	    readQueue.waitForAccess(thread);
+	    KThread.sleep();
+	}
+	else {
+	    addReader(thread);
+	    if (donatesPriority && numReaders == 1)
+		setOwner(thread);
+	}
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Atomically release this lock after reading. The current thread must
+     * hold this lock for reading.
+     */
+    public void releaseRead() {
+	removeReader(KThread.currentThread());
+
+	if (!donatesPriority && (numReaders > 0 || numWaitingWriters == 0))
+	    return;
+
+	boolean intStatus = Machine.interrupt().disable();
+
+	if (numReaders > 0)
+	    setOwner(readers[0]);
+	else if (numWaitingWriters > 0)
+	    nextWriter();
+	else
+	    clearOwner();
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Atomically acquire this lock for writing. The current thread must not
+     * already hold this lock.
+     */
+    public void acquireWrite() {
+	KThread thread = KThread.currentThread();
+	Lib.assertTrue(writer != thread);
+
+	if (writer == null && numReaders == 0 && !donatesPriority) {
+	    writer = thread;
+	    return;
+	}
+
+	boolean intStatus = Machine.interrupt().disable();
+
+	if (writer != null || numReaders > 0) {
+	    numWaitingWriters++;
+	    writeQueue.waitForAccess(thread);
+	    KThread.sleep();
+	}
+	else {
+	    writer = thread;
+	    if (donatesPriority)
+		setOwner(thread);
+	}
+
+	Lib.assertTrue(writer == thread);
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Atomically release this lock after writing. The current thread must
+     * hold this lock for writing.
+     */
+    public void releaseWrite() {
+	Lib.assertTrue(isWriteHeldByCurrentThread());
+
+	if (numWaitingWriters == 0 && numWaitingReaders == 0 &&
+	    !donatesPriority) {
+	    writer = null;
+	    return;
+	}
+
+	boolean intStatus = Machine.interrupt().disable();
+
+	writer = null;
+
+	if (numWaitingWriters > 0) {
+	    nextWriter();
+	}
+	else {
+	    KThread thread;
+	    while ((thread = readQueue.nextThread()) != null) {
+		numWaitingReaders--;
+		addReader(thread);
+		thread.ready();
+	    }
+
+	    if (donatesPriority) {
+		if (numReaders > 0)
+		    setOwner(readers[0]);
+		else
+		    clearOwner();
+	    }
+	}
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Test if the current thread holds this lock for writing.
+     *
+     * @return	true if the current thread holds this lock for writing.
+     */
+    public boolean isWriteHeldByCurrentThread() {
+	return (writer == KThread.currentThread());
+    }
+
+    /**
+     * Hand this lock to the first waiting writer.
+     */
+    private void nextWriter() {
+	writer = writeQueue.nextThread();
+	numWaitingWriters--;
+
+	if (donatesPriority)
+	    readQueue.acquire(writer);
+
+	writer.ready();
+    }
+
+    /**
+     * Make both wait queues donate to the specified thread, which holds this
+     * lock.
+     */
+    private void setOwner(KThread thread) {
+	readQueue.acquire(thread);
+	writeQueue.acquire(thread);
+    }
+
+    /**
+     * Stop both wait queues, which must be empty, from donating to anyone.
+     */
+    private void clearOwner() {
+	KThread nextReader = readQueue.nextThread();
+	KThread nextWriter = writeQueue.nextThread();
+
+	Lib.assertTrue(nextReader == null && nextWriter == null);
+    }
+
+    private void addReader(KThread thread) {
+	if (numReaders == readers.length) {
+	    KThread[] grown = new KThread[readers.length*2];
+	    System.arraycopy(readers, 0, grown, 0, numReaders);
+	    readers = grown;
+	}
+
+	readers[numReaders++] = thread;
+    }
+
+    private void removeReader(KThread thread) {
+	for (int i=0; i<numReaders; i++) {
+	    if (readers[i] == thread) {
+		readers[i] = readers[--numReaders];
+		readers[numReaders] = null;
+		return;
+	    }
+	}
+
+	Lib.assertNotReached("releaseRead() without acquireRead()");
+    }
+
+    /**
+     * Test if this module is working.
+     */
+    public static void selfTest() {
+	final ReadWriteLock rwLock = new ReadWriteLock();
+	final Semaphore done = new Semaphore(0);
+	final boolean[] written = new boolean[1];
+
+	// a second reader gets in while the first holds the lock
+	rwLock.acquireRead();
+	new KThread(new Runnable() {
+		public void run() {
+		    rwLock.acquireRead();
+		    done.V();
+		    rwLock.releaseRead();
+		}
+	    }).setName("reader").fork();
+	done.P();
+
+	// a writer waits until the last reader leaves
+	new KThread(new Runnable() {
+		public void run() {
+		    rwLock.acquireWrite();
+		    written[0] = true;
+		    rwLock.releaseWrite();
+		    done.V();
+		}
+	    }).setName("writer").fork();
+
+	for (int i=0; i<5; i++)
+	    KThread.yield();
+	Lib.assertTrue(!written[0] && rwLock.numWaitingWriters == 1);
+
+	rwLock.releaseRead();
+	done.P();
+	Lib.assertTrue(written[0]);
+
+	// writers exclude each other and readers
+	final int numThreads = 4;
+	final int[] inside = new int[2];
+	for (int i=0; i<numThreads; i++) {
+	    final int which = i;
+	    new KThread(new Runnable() {
+		    public void run() {
+			for (int j=0; j<10; j++) {
+			    if ((which + j) % 3 == 0) {
+				rwLock.acquireWrite();
+				Lib.assertTrue(inside[0] == 0 && inside[1] == 0);
+				inside[1]++;
+				KThread.yield();
+				inside[1]--;
+				rwLock.releaseWrite();
+			    }
+			    else {
+				rwLock.acquireRead();
+				Lib.assertTrue(inside[1] == 0);
+				inside[0]++;
+				KThread.yield();
+				inside[0]--;
+				rwLock.releaseRead();
+			    }
+			}
+			done.V();
+		    }
+		}).setName("rwlock " + i).fork();
+	}
+
+	for (int i=0; i<numThreads; i++)
+	    done.P();
+    }
+
+    /**
+     * Compare this lock against an ordinary <tt>Lock</tt>, with
+     * <tt>benchmarkThreads</tt> threads each making <tt>benchmarkOps</tt>
+     * accesses to a shared record, one in <tt>benchmarkWriteRatio</tt> of
+     * them writes. Every access waits for the next timer interrupt while it
+     * holds the lock, as if it were waiting for a device, so the simulated
+     * time a benchmark takes shows how many accesses could overlap.
+     */
+    public static void benchmark() {
+	final int[] record = new int[2];
+
+	final Lock lock = new Lock();
+	runBenchmark("Lock", new Runnable() {
+		public void run() {
+		    lock.acquire();
+		    readRecord(record);
+		    lock.release();
+		}
+	    }, new Runnable() {
+		public void run() {
+		    lock.acquire();
+		    writeRecord(record);
+		    lock.release();
+		}
+	    });
+
+	final ReadWriteLock rwLock = new ReadWriteLock();
+	runBenchmark("ReadWriteLock", new Runnable() {
+		public void run() {
+		    rwLock.acquireRead();
+		    readRecord(record);
+		    rwLock.releaseRead();
+		}
+	    }, new Runnable() {
+		public void run() {
+		    rwLock.acquireWrite();
+		    writeRecord(record);
+		    rwLock.releaseWrite();
+		}
+	    });
+    }
+
+    /**
+     * Run one lock benchmark, and print how long it took.
+     *
+     * @param	name	the name of the benchmark.
+     * @param	read	reads the shared record under the lock.
+     * @param	write	writes the shared record under the lock.
+     */
+    static void runBenchmark(String name, final Runnable read,
+			     final Runnable write) {
+	long startTicks = Machine.timer().getTime();
+	long startTime = System.nanoTime();
+
+	final Semaphore done = new Semaphore(0);
+
+	for (int i=0; i<benchmarkThreads; i++) {
+	    final int which = i;
+	    new KThread(new Runnable() {
+		    public void run() {
+			for (int j=0; j<benchmarkOps; j++) {
+			    if ((which + j) % benchmarkWriteRatio == 0)
+				write.run();
+			    else
+				read.run();
+			}
+			done.V();
+		    }
+		}).setName(name + " " + i).fork();
+	}
+
+	for (int i=0; i<benchmarkThreads; i++)
+	    done.P();
+
+	int ops = benchmarkThreads * benchmarkOps;
+	long nanos = System.nanoTime() - startTime;
+	System.out.println(name + " benchmark: " + ops + " operations, "
+			   + (Machine.timer().getTime() - startTicks)
+			   + " ticks, " + (nanos / ops) + " ns/operation");
+    }
+
+    /**
+     * Read both halves of a benchmark record, waiting in between, and check
+     * that they match.
+     */
+    static void readRecord(int[] record) {
+	int first = record[0];
+	ThreadedKernel.alarm.waitUntil(1);
+	Lib.assertTrue(record[1] == first);
+    }
+
+    /**
+     * Write both halves of a benchmark record, waiting in between.
+     */
+    static void writeRecord(int[] record) {
+	record[0]++;
+	ThreadedKernel.alarm.waitUntil(1);
+	record[1]++;
+    }
+
+    /** The number of threads in each lock benchmark. */
+    static final int benchmarkThreads = 8;
+    /** The number of accesses each thread makes in a lock benchmark. */
+    static final int benchmarkOps = 100;
+    /** One in this many accesses in a lock benchmark is a write. */
+    static final int benchmarkWriteRatio = 10;
+
+    private KThread writer = null;
+    private KThread[] readers = new KThread[4];
+    private int numReaders = 0;
+    private int numWaitingReaders = 0, numWaitingWriters = 0;
+
+    private boolean donatesPriority =
+	ThreadedKernel.scheduler.donatesPriority();
+    private ThreadQueue readQueue =
+	ThreadedKernel.scheduler.newThreadQueue(true);
+    private ThreadQueue writeQueue =
+	ThreadedKernel.scheduler.newThreadQueue(true);
+}
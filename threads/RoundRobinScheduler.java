@@ -30,6 +30,10 @@ public class RoundRobinScheduler extends Scheduler {
 	return new FifoQueue();
     }
 
+    public boolean donatesPriority() {
+	return false;
+    }
+
     private class FifoQueue extends ThreadQueue {
 	/**
 	 * Add a thread to the end of the wait queue.
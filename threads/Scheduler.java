@@ -154,4 +154,57 @@ public abstract class Scheduler {
     public boolean decreasePriority() {
 	return false;
     }
+
+    /**
+     * Return whether queues allocated with <tt>transferPriority</tt> set
+     * actually donate priority to the thread that owns them. If not, a
+     * <tt>Lock</tt> does not need to tell its queue which thread holds it.
+     *
+     * <p>
+     * The default implementation returns <tt>true</tt>.
+     *
+     * @return	<tt>true</tt> if this scheduler donates priority.
+     */
+    public boolean donatesPriority() {
+	return true;
+    }
+
+    /**
+     * Called by the alarm on every timer interrupt, with interrupts disabled,
+     * to decide whether the current thread should be preempted. A scheduler
+     * that gives threads time slices longer than one timer interrupt can
+     * charge the current thread for its time here.
+     *
+     * <p>
+     * The default implementation always preempts the current thread.
+     *
+     * @return	<tt>true</tt> if the current thread should yield.
+     */
+    public boolean timerInterrupt() {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	return true;
+    }
+
+    /**
+     * Called by <tt>KThread.saveState()</tt>, with interrupts disabled, when
+     * the specified thread is about to give up the processor. The default
+     * implementation does nothing.
+     *
+     * @param	thread	the current thread.
+     */
+    public void saveState(KThread thread) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+    }
+
+    /**
+     * Called by <tt>KThread.restoreState()</tt>, with interrupts disabled,
+     * when the specified thread has just received the processor. The default
+     * implementation does nothing.
+     *
+     * @param	thread	the current thread.
+     */
+    public void restoreState(KThread thread) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+    }
 }
@@ -20,6 +20,13 @@ import nachos.machine.*;
  * because by the time you get the value, a context switch might have occurred,
  * and some other thread might have called <tt>P()</tt> or <tt>V()</tt>, so the
  * true value might now be different.
+ *
+ * <p>
+ * <tt>P(int)</tt> and <tt>V(int)</tt> wait for and release several units at
+ * once. Waiting threads are served in the order the scheduler chooses. The
+ * thread being served takes units as they are released until it has all it
+ * asked for, so threads waiting for many units are not starved by threads
+ * waiting for few.
  */
 public class Semaphore {
     /**
@@ -35,45 +42,113 @@ public class Semaphore {
      * Atomically wait for this semaphore to become non-zero and decrement it.
      */
     public void P() {
+	P(1);
+    }
+
+    /**
+     * Atomically wait until this semaphore has been decremented by
+     * <i>n</i>, without it ever going below zero.
+     *
+     * @param	n	the amount to decrement this semaphore by.
+     */
+    public void P(int n) {
+	Lib.assertTrue(n > 0);
+
 	boolean intStatus = Machine.interrupt().disable();
 
-	if (value == 0) {
-	    waitQueue.waitForAccess(KThread.currentThread());
-	    KThread.sleep();
+	if (filling == null && numWaiting == 0 && value >= n) {
+	    value -= n;
 	}
 	else {
-	    value--;
+	    KThread thread = KThread.currentThread();
+
+	    if (filling == null && numWaiting == 0 && value > 0) {
+		// nobody is ahead of us, so start taking units now
+		filling = thread;
+		needed = n - value;
+		value = 0;
+	    }
+	    else {
+		thread.permitsWanted = n;
+		numWaiting++;
+		waitQueue.waitForAccess(thread);
+	    }
+
+	    KThread.sleep();
 	}
 
 	Machine.interrupt().restore(intStatus);
     }
 
+    /**
+     * Decrement this semaphore if it is non-zero and no thread is waiting on
+     * it, without blocking.
+     *
+     * @return	<tt>true</tt> if this semaphore was decremented.
+     */
+    public boolean tryP() {
+	if (filling != null || numWaiting > 0 || value == 0)
+	    return false;
+
+	value--;
+	return true;
+    }
+
     /**
      * Atomically increment this semaphore and wake up at most one other thread
      * sleeping on this semaphore.
      */
     public void V() {
+	V(1);
+    }
+
+    /**
+     * Atomically increment this semaphore by <i>n</i>, and wake up every
+     * sleeping thread that can now finish decrementing it.
+     *
+     * @param	n	the amount to increment this semaphore by.
+     */
+    public void V(int n) {
+	Lib.assertTrue(n > 0);
+
 	boolean intStatus = Machine.interrupt().disable();
 
-	KThread thread = waitQueue.nextThread();
-	if (thread != null) {
-	    thread.ready();
-	}
-	else {
-	    value++;
+	value += n;
+	while (value > 0) {
+	    if (filling == null) {
+		if ((filling = waitQueue.nextThread()) == null)
+		    break;
+
+		numWaiting--;
+		needed = filling.permitsWanted;
+	    }
+
+	    int taken = Math.min(value, needed);
+	    value -= taken;
+	    needed -= taken;
+
+	    if (needed == 0) {
+		filling.ready();
+		filling = null;
+	    }
 	}
-	
+
 	Machine.interrupt().restore(intStatus);
     }
 
     private static class PingTest implements Runnable {
 	PingTest(Semaphore ping, Semaphore pong) {
+	    this(ping, pong, 10);
+	}
+
+	PingTest(Semaphore ping, Semaphore pong, int loops) {
 	    this.ping = ping;
 	    this.pong = pong;
+	    this.loops = loops;
 	}
 	
 	public void run() {
-	    for (int i=0; i<10; i++) {
+	    for (int i=0; i<loops; i++) {
 		ping.P();
 		pong.V();
 	    }
@@ -81,6 +156,7 @@ public class Semaphore {
 
 	private Semaphore ping;
 	private Semaphore pong;
+	private int loops;
     }
 
     /**
@@ -96,9 +172,64 @@ public class Semaphore {
 	    ping.V();
 	    pong.P();
 	}
+
+	// one V(n) wakes every waiter it can satisfy
+	final Semaphore units = new Semaphore(0);
+	final Semaphore done = new Semaphore(0);
+	for (int i=0; i<3; i++) {
+	    new KThread(new Runnable() {
+		    public void run() {
+			units.P(2);
+			done.V();
+		    }
+		}).setName("P(2)").fork();
+	}
+
+	while (units.numWaiting < 3)
+	    KThread.yield();
+
+	units.V(5);
+	done.P();
+	done.P();
+	Lib.assertTrue(units.needed == 1 && !done.tryP());
+	units.V(1);
+	done.P();
+	Lib.assertTrue(!units.tryP());
+    }
+
+    /**
+     * Measure the cost of a context switch through a pair of semaphores,
+     * the way blocked threads hand off to each other.
+     */
+    public static void benchmark() {
+	Semaphore ping = new Semaphore(0);
+	Semaphore pong = new Semaphore(0);
+
+	long startTicks = Machine.timer().getTime();
+	long startTime = System.nanoTime();
+
+	new KThread(new PingTest(ping, pong, KThread.benchmarkLoops))
+	    .setName("ping").fork();
+
+	for (int i=0; i<KThread.benchmarkLoops; i++) {
+	    ping.V();
+	    pong.P();
+	}
+
+	KThread.printBenchmark("Semaphore", 2*KThread.benchmarkLoops,
+			       Machine.timer().getTime() - startTicks,
+			       System.nanoTime() - startTime);
     }
 
     private int value;
+    /**
+     * The waiting thread that is taking units as they are released, and how
+     * many more it needs.
+     */
+    private KThread filling = null;
+    private int needed = 0;
+    /** The number of threads waiting on <tt>waitQueue</tt>. */
+    private int numWaiting = 0;
     private ThreadQueue waitQueue =
 	ThreadedKernel.scheduler.newThreadQueue(false);
 }
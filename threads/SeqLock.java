@@ -0,0 +1,162 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+/**
+ * A <tt>SeqLock</tt> protects a small record that is read much more often
+ * than it is written. Writers exclude each other with a <tt>Lock</tt>, but
+ * readers take no lock at all, so they never make a writer wait. Instead, a
+ * reader checks afterwards whether a writer got in while it was reading, and
+ * if so, reads again:
+ *
+ * <pre>
+ * int seq;
+ * do {
+ *     seq = seqLock.readBegin();
+ *     // copy the record
+ * } while (seqLock.readRetry(seq));
+ * </pre>
+ *
+ * <p>
+ * A reader may see a record that is half written, so it must only copy the
+ * record inside the loop, and act on the copy once <tt>readRetry()</tt>
+ * returns <tt>false</tt>.
+ */
+public class SeqLock {
+    /**
+     * Allocate a new sequence lock.
+     */
+    public SeqLock() {
+    }
+
+    /**
+     * Start reading the protected record. If a writer is in the middle of
+     * writing it, wait until the writer has finished. The reader blocks on
+     * the writers' <tt>Lock</tt> rather than yielding, so that it cannot keep
+     * a lower priority writer from running, and so that a scheduler that
+     * donates priority passes the reader's priority on to the writer.
+     *
+     * @return	the sequence number to pass to <tt>readRetry()</tt>.
+     */
+    public int readBegin() {
+	int seq;
+	while (((seq = sequence) & 1) != 0) {
+	    writeLock.acquire();
+	    writeLock.release();
+	}
+
+	return seq;
+    }
+
+    /**
+     * Finish reading the protected record.
+     *
+     * @param	seq	the value returned by the matching
+     *			<tt>readBegin()</tt>.
+     * @return	<tt>true</tt> if the record was written while it was being
+     *		read, so the read must be started over.
+     */
+    public boolean readRetry(int seq) {
+	return sequence != seq;
+    }
+
+    /**
+     * Start writing the protected record, waiting for any other writer to
+     * finish first.
+     */
+    public void writeBegin() {
+	writeLock.acquire();
+	sequence++;
+    }
+
+    /**
+     * Finish writing the protected record. The current thread must have
+     * called <tt>writeBegin()</tt>.
+     */
+    public void writeEnd() {
+	Lib.assertTrue(writeLock.isHeldByCurrentThread());
+
+	sequence++;
+	writeLock.release();
+    }
+
+    /**
+     * Test if this module is working.
+     */
+    public static void selfTest() {
+	final SeqLock seqLock = new SeqLock();
+	final int[] record = new int[2];
+	final Semaphore done = new Semaphore(0);
+
+	// a write that lands during a read makes the reader retry
+	int seq = seqLock.readBegin();
+	new KThread(new Runnable() {
+		public void run() {
+		    seqLock.writeBegin();
+		    record[0]++;
+		    record[1]++;
+		    seqLock.writeEnd();
+		    done.V();
+		}
+	    }).setName("seqlock writer").fork();
+	done.P();
+	Lib.assertTrue(seqLock.readRetry(seq));
+
+	seq = seqLock.readBegin();
+	Lib.assertTrue(record[0] == 1 && record[1] == 1);
+	Lib.assertTrue(!seqLock.readRetry(seq));
+
+	// a reader that finds a write in progress waits for it to finish
+	final Semaphore go = new Semaphore(0);
+	new KThread(new Runnable() {
+		public void run() {
+		    seqLock.writeBegin();
+		    record[0]++;
+		    go.P();
+		    record[1]++;
+		    seqLock.writeEnd();
+		}
+	    }).setName("seqlock writer").fork();
+
+	while ((seqLock.sequence & 1) == 0)
+	    KThread.yield();
+	go.V();
+
+	seq = seqLock.readBegin();
+	Lib.assertTrue(record[0] == 2 && record[1] == 2);
+	Lib.assertTrue(!seqLock.readRetry(seq));
+    }
+
+    /**
+     * Run the <tt>ReadWriteLock</tt> benchmark with this lock, so the two can
+     * be compared.
+     */
+    public static void benchmark() {
+	final int[] record = new int[2];
+
+	final SeqLock seqLock = new SeqLock();
+	ReadWriteLock.runBenchmark("SeqLock", new Runnable() {
+		public void run() {
+		    int seq, first, second;
+		    do {
+			seq = seqLock.readBegin();
+			first = record[0];
+			ThreadedKernel.alarm.waitUntil(1);
+			second = record[1];
+		    } while (seqLock.readRetry(seq));
+
+		    Lib.assertTrue(first == second);
+		}
+	    }, new Runnable() {
+		public void run() {
+		    seqLock.writeBegin();
+		    ReadWriteLock.writeRecord(record);
+		    seqLock.writeEnd();
+		}
+	    });
+    }
+
+    /** Odd while a writer is writing the record. */
+    private int sequence = 0;
+    private Lock writeLock = new Lock();
+}
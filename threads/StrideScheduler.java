@@ -0,0 +1,326 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+/**
+ * A scheduler that shares access in proportion to tickets, deterministically.
+ *
+ * <p>
+ * Like a lottery scheduler, a stride scheduler associates a number of tickets
+ * with each thread. Each thread also has a <i>pass</i> value, and the next
+ * thread to be dequeued is always the waiting thread with the lowest pass
+ * (the one that has waited longest, among equal passes). Each time a thread
+ * is given the processor, its pass advances by its <i>stride</i>, which is
+ * inversely proportional to its tickets. Over any interval, each thread runs
+ * in proportion to its tickets, give or take one.
+ *
+ * <p>
+ * A thread's pass measures only the processor time it has been given, so
+ * every queue orders its threads by the same pass, and only
+ * <tt>restoreState()</tt> advances it. Acquiring a lock or a semaphore does
+ * not cost a thread any of its share.
+ *
+ * <p>
+ * Tickets are transferred through locks like they are in a lottery scheduler.
+ * When a waiting thread's tickets change, the rest of its current stride is
+ * rescaled to the new stride, so a donation takes effect immediately.
+ */
+public class StrideScheduler extends TicketScheduler {
+    /**
+     * Allocate a new stride scheduler.
+     */
+    public StrideScheduler() {
+    }
+
+    /**
+     * Allocate a new stride thread queue.
+     *
+     * @param	transferPriority	<tt>true</tt> if this queue should
+     *					transfer tickets from waiting threads
+     *					to the owning thread.
+     * @return	a new stride thread queue.
+     */
+    public ThreadQueue newThreadQueue(boolean transferPriority) {
+	return new StrideQueue(transferPriority);
+    }
+
+    /**
+     * Advance the pass of a thread that has just been given the processor by
+     * its stride.
+     */
+    public void restoreState(KThread thread) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	StrideState state = getThreadState(thread);
+	pass = Math.max(pass, state.pass);
+	state.pass += state.getStride();
+    }
+
+    /**
+     * The stride of a thread with one ticket. A thread with <i>n</i> tickets
+     * has a stride of <tt>stride1/</tt><i>n</i>.
+     */
+    public static final long stride1 = 1L << 32;
+
+    /**
+     * Test if this module is working.
+     */
+    public static void selfTest() {
+	StrideScheduler scheduler = new StrideScheduler();
+	ThreadQueue queue = scheduler.newThreadQueue(false);
+	KThread[] threads = new KThread[3];
+
+	boolean intStatus = Machine.interrupt().disable();
+
+	for (int i=0; i<threads.length; i++) {
+	    threads[i] = new KThread().setName("stride " + i);
+	    scheduler.setPriority(threads[i], i+1);
+	    queue.waitForAccess(threads[i]);
+	}
+
+	// threads with 1, 2, and 3 tickets get 1/6, 2/6, and 3/6, plus or minus 1
+	int[] wins = new int[threads.length];
+	for (int i=0; i<600; i++) {
+	    KThread winner = queue.nextThread();
+	    wins[scheduler.getPriority(winner)-1]++;
+	    scheduler.restoreState(winner);
+	    queue.waitForAccess(winner);
+	}
+	for (int i=0; i<threads.length; i++) {
+	    Lib.assertTrue(Math.abs(wins[i] - 100*(i+1)) <= 1);
+	    queue.nextThread();
+	}
+	Lib.assertTrue(queue.nextThread() == null);
+
+	/* threads[0] holds a lock that threads[2] waits for, so it should
+	 * now win as if it had 4 tickets against 2.
+	 */
+	ThreadQueue lock = scheduler.newThreadQueue(true);
+	lock.acquire(threads[0]);
+	lock.waitForAccess(threads[2]);
+	Lib.assertTrue(scheduler.getEffectivePriority(threads[0]) == 4);
+
+	queue.waitForAccess(threads[0]);
+	queue.waitForAccess(threads[1]);
+	wins = new int[threads.length];
+	for (int i=0; i<600; i++) {
+	    KThread winner = queue.nextThread();
+	    wins[scheduler.getPriority(winner)-1]++;
+	    scheduler.restoreState(winner);
+	    queue.waitForAccess(winner);
+	}
+	Lib.assertTrue(Math.abs(wins[0] - 400) <= 1 &&
+		       Math.abs(wins[1] - 200) <= 1);
+	queue.nextThread();
+	queue.nextThread();
+
+	// acquiring the lock does not advance the pass of threads[2]
+	long pass = scheduler.getThreadState(threads[2]).pass;
+	Lib.assertTrue(lock.nextThread() == threads[2]);
+	Lib.assertTrue(scheduler.getThreadState(threads[2]).pass == pass);
+	Lib.assertTrue(scheduler.getEffectivePriority(threads[0]) == 1);
+	Lib.assertTrue(lock.nextThread() == null);
+
+	Machine.interrupt().restore(intStatus);
+
+	for (int i=0; i<threads.length; i++)
+	    threads[i].schedulingState = null;
+    }
+
+    /**
+     * Return the scheduling state of the specified thread.
+     *
+     * @param	thread	the thread whose scheduling state to return.
+     * @return	the scheduling state of the specified thread.
+     */
+    protected StrideState getThreadState(KThread thread) {
+	if (thread.schedulingState == null)
+	    thread.schedulingState = new StrideState(thread);
+
+	return (StrideState) thread.schedulingState;
+    }
+
+    /**
+     * A <tt>ThreadQueue</tt> that keeps its waiting threads in a min-heap
+     * ordered by pass. Each thread knows its index in the heap, so its pass
+     * can be changed in place.
+     */
+    protected class StrideQueue extends TicketQueue {
+	StrideQueue(boolean transferPriority) {
+	    super(transferPriority);
+	}
+
+	/**
+	 * Return the next thread that <tt>nextThread()</tt> would return,
+	 * without modifying the state of this queue.
+	 *
+	 * @return	the next thread that <tt>nextThread()</tt> would
+	 *		return.
+	 */
+	protected StrideState pickNextThread() {
+	    return (size == 0) ? null : heap[0];
+	}
+
+	/**
+	 * Add a thread to the heap. A thread does not get credit for time it
+	 * spent away from the processor, so its pass starts no earlier than
+	 * the pass of the last thread given the processor.
+	 */
+	void add(TicketState ticketState) {
+	    StrideState state = (StrideState) ticketState;
+
+	    if (size == heap.length) {
+		StrideState[] newHeap = new StrideState[size*2];
+		System.arraycopy(heap, 0, newHeap, 0, size);
+		heap = newHeap;
+	    }
+
+	    state.pass = Math.max(state.pass, pass);
+	    state.waitTime = numWaits++;
+	    state.index = size++;
+	    heap[state.index] = state;
+	    siftUp(state.index);
+
+	    total += state.getTickets();
+	}
+
+	/**
+	 * Remove a thread from the heap.
+	 */
+	void remove(TicketState ticketState) {
+	    StrideState state = (StrideState) ticketState;
+
+	    total -= state.getTickets();
+
+	    int index = state.index;
+	    StrideState last = heap[--size];
+	    heap[size] = null;
+
+	    if (last != state) {
+		heap[index] = last;
+		last.index = index;
+		siftUp(index);
+		siftDown(last.index);
+	    }
+	}
+
+	/**
+	 * Called when a waiting thread's tickets have changed by <i>delta</i>.
+	 * The part of its old stride still ahead of it is rescaled to its new
+	 * stride.
+	 */
+	void ticketsChanged(TicketState ticketState, long delta) {
+	    StrideState state = (StrideState) ticketState;
+
+	    total += delta;
+
+	    long remaining = state.pass - pass;
+	    if (remaining > 0) {
+		long oldStride = getStride(state.getTickets() - delta);
+		long newStride = state.getStride();
+		state.pass = pass + (long) ((double) remaining * newStride
+					   / oldStride);
+		siftUp(state.index);
+		siftDown(state.index);
+	    }
+	}
+
+	private boolean before(StrideState a, StrideState b) {
+	    if (a.pass != b.pass)
+		return a.pass < b.pass;
+	    else
+		return a.waitTime < b.waitTime;
+	}
+
+	private void siftUp(int index) {
+	    StrideState state = heap[index];
+
+	    while (index > 0) {
+		int parent = (index-1) / 2;
+		if (!before(state, heap[parent]))
+		    break;
+
+		heap[index] = heap[parent];
+		heap[index].index = index;
+		index = parent;
+	    }
+
+	    heap[index] = state;
+	    state.index = index;
+	}
+
+	private void siftDown(int index) {
+	    StrideState state = heap[index];
+
+	    while (true) {
+		int child = 2*index + 1;
+		if (child >= size)
+		    break;
+		if (child+1 < size && before(heap[child+1], heap[child]))
+		    child++;
+		if (!before(heap[child], state))
+		    break;
+
+		heap[index] = heap[child];
+		heap[index].index = index;
+		index = child;
+	    }
+
+	    heap[index] = state;
+	    state.index = index;
+	}
+
+	public void print() {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    for (int i=0; i<size; i++)
+		System.out.print(heap[i].thread + " ");
+	}
+
+	private StrideState[] heap = new StrideState[8];
+	private int size = 0;
+    }
+
+    /**
+     * The scheduling state of a thread in a stride scheduler. The priority
+     * of the thread is its number of tickets.
+     */
+    protected class StrideState extends TicketState {
+	/**
+	 * Allocate a new <tt>StrideState</tt> object and associate it with
+	 * the specified thread.
+	 *
+	 * @param	thread	the thread this state belongs to.
+	 */
+	public StrideState(KThread thread) {
+	    super(thread);
+	}
+
+	/**
+	 * Return the amount the associated thread's pass advances by each
+	 * time it is given the processor.
+	 *
+	 * @return	the stride of the associated thread.
+	 */
+	long getStride() {
+	    return StrideScheduler.getStride(getTickets());
+	}
+
+	/** The associated thread's index in the heap of <tt>waitingOn</tt>. */
+	int index;
+	/** The virtual time at which the associated thread is next due. */
+	long pass = 0;
+    }
+
+    /**
+     * Return the stride of a thread with the specified number of tickets.
+     */
+    private static long getStride(long tickets) {
+	return Math.max(stride1 / tickets, 1);
+    }
+
+    /** The pass of the last thread given the processor. */
+    private long pass = 0;
+    /** The number of times any thread has waited on a queue. */
+    private long numWaits = 0;
+}
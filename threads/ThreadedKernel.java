@@ -42,19 +42,38 @@ public class ThreadedKernel extends Kernel {
 
     /**
      * Test this kernel. Test the <tt>KThread</tt>, <tt>Semaphore</tt>,
-     * <tt>SynchList</tt>, and <tt>ElevatorBank</tt> classes. Note that the
-     * autograder never calls this method, so it is safe to put additional
-     * tests here.
+     * <tt>SynchList</tt>, <tt>BoundedSynchList</tt>, and
+     * <tt>ElevatorBank</tt> classes. Note that the autograder never calls
+     * this method, so it is safe to put additional tests here.
      */	
     public void selfTest() {
+	if (Config.getBoolean("ThreadedKernel.benchmark", false)) {
+	    KThread.benchmark();
+	    Semaphore.benchmark();
+	    ReadWriteLock.benchmark();
+	    SeqLock.benchmark();
+	    Barrier.benchmark();
+	    CountDownLatch.benchmark();
+	}
+
 	KThread.selfTest();
 	//Condition2.selfTest();
 	//Alarm.selfTest();				SELF TESTS WE USED
 	//Communicator.selfTest();
 	//ReactWater.selfTest();	
 	
+	PriorityScheduler.selfTest();
+	LotteryScheduler.selfTest();
+	StrideScheduler.selfTest();
+	MLFQScheduler.selfTest();
+	CFSScheduler.selfTest();
 	Semaphore.selfTest();
+	ReadWriteLock.selfTest();
+	SeqLock.selfTest();
 	SynchList.selfTest();
+	BoundedSynchList.selfTest();
+	Barrier.selfTest();
+	CountDownLatch.selfTest();
 	if (Machine.bank() != null) {
 	    ElevatorBank.selfTest();
 	}
@@ -0,0 +1,296 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+/**
+ * A scheduler that shares access in proportion to tickets.
+ *
+ * <p>
+ * A ticket scheduler associates a number of tickets with each thread; the
+ * priority of a thread is its number of tickets. Subclasses decide how a queue
+ * chooses among its waiting threads, but each should give threads access in
+ * proportion to their tickets.
+ *
+ * <p>
+ * Tickets are transferred through locks and through joins: the owner of a
+ * queue that transfers priority holds the tickets of every thread waiting on
+ * that queue, as well as its own. Unlike priorities, these tickets add, and a
+ * change in the tickets of a waiting thread is passed along the chain of
+ * owners as it happens.
+ */
+public abstract class TicketScheduler extends PriorityScheduler {
+    /**
+     * Allocate a new ticket scheduler.
+     */
+    public TicketScheduler() {
+    }
+
+    public void setPriority(KThread thread, int priority) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	Lib.assertTrue(priority >= ticketsMinimum &&
+		   priority <= ticketsMaximum);
+
+	getThreadState(thread).setPriority(priority);
+    }
+
+    public boolean increasePriority() {
+	boolean intStatus = Machine.interrupt().disable();
+
+	KThread thread = KThread.currentThread();
+
+	int priority = getPriority(thread);
+	if (priority == ticketsMaximum) {
+	    Machine.interrupt().restore(intStatus);
+	    return false;
+	}
+
+	setPriority(thread, priority+1);
+
+	Machine.interrupt().restore(intStatus);
+	return true;
+    }
+
+    public boolean decreasePriority() {
+	boolean intStatus = Machine.interrupt().disable();
+
+	KThread thread = KThread.currentThread();
+
+	int priority = getPriority(thread);
+	if (priority == ticketsMinimum) {
+	    Machine.interrupt().restore(intStatus);
+	    return false;
+	}
+
+	setPriority(thread, priority-1);
+
+	Machine.interrupt().restore(intStatus);
+	return true;
+    }
+
+    /**
+     * The minimum number of tickets that a thread can have.
+     */
+    public static final int ticketsMinimum = 1;
+    /**
+     * The maximum number of tickets that a thread can have.
+     */
+    public static final int ticketsMaximum = Integer.MAX_VALUE;
+
+    /**
+     * Return the scheduling state of the specified thread.
+     *
+     * @param	thread	the thread whose scheduling state to return.
+     * @return	the scheduling state of the specified thread.
+     */
+    protected abstract TicketState getThreadState(KThread thread);
+
+    /**
+     * A <tt>ThreadQueue</tt> that transfers tickets from its waiting threads
+     * to its owner.
+     */
+    protected abstract class TicketQueue extends ThreadQueue {
+	TicketQueue(boolean transferPriority) {
+	    this.transferPriority = transferPriority;
+	}
+
+	public void waitForAccess(KThread thread) {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+	    getThreadState(thread).waitForAccess(this);
+	}
+
+	public void acquire(KThread thread) {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+	    getThreadState(thread).acquire(this);
+	}
+
+	public KThread nextThread() {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    if (owner != null)
+		owner.release(this);
+
+	    TicketState next = pickNextThread();
+	    if (next == null)
+		return null;
+
+	    remove(next);
+	    next.waitingOn = null;
+	    next.acquire(this);
+
+	    return next.thread;
+	}
+
+	/**
+	 * Return the next thread that <tt>nextThread()</tt> would return.
+	 *
+	 * @return	the next thread that <tt>nextThread()</tt> would
+	 *		return, or <tt>null</tt> if no threads are waiting.
+	 */
+	protected abstract TicketState pickNextThread();
+
+	/**
+	 * Add a thread to this queue, and its tickets to <tt>total</tt>.
+	 */
+	abstract void add(TicketState state);
+
+	/**
+	 * Take a thread out of this queue, and its tickets out of
+	 * <tt>total</tt>.
+	 */
+	abstract void remove(TicketState state);
+
+	/**
+	 * Called when the tickets of a waiting thread have just changed by
+	 * <i>delta</i>. <tt>total</tt> must change by the same amount.
+	 */
+	abstract void ticketsChanged(TicketState state, long delta);
+
+	/**
+	 * <tt>true</tt> if this queue should transfer tickets from waiting
+	 * threads to the owning thread.
+	 */
+	public boolean transferPriority;
+	/**
+	 * The thread that last acquired this queue, if it transfers tickets
+	 * and that thread has not released it yet.
+	 */
+	TicketState owner = null;
+	/** The total number of tickets held by waiting threads. */
+	long total = 0;
+    }
+
+    /**
+     * The scheduling state of a thread in a ticket scheduler. The priority
+     * of the thread is its number of tickets.
+     */
+    protected class TicketState extends ThreadState {
+	/**
+	 * Allocate a new <tt>TicketState</tt> object and associate it with
+	 * the specified thread.
+	 *
+	 * @param	thread	the thread this state belongs to.
+	 */
+	public TicketState(KThread thread) {
+	    super(thread);
+	}
+
+	/**
+	 * Return the number of tickets the associated thread holds, including
+	 * those transferred to it.
+	 *
+	 * @return	the number of tickets the associated thread holds, or
+	 *		<tt>ticketsMaximum</tt> if that is more.
+	 */
+	public int getEffectivePriority() {
+	    return (int) Math.min(getTickets(), ticketsMaximum);
+	}
+
+	/**
+	 * Return the number of tickets the associated thread holds, including
+	 * those transferred to it.
+	 *
+	 * @return	the number of tickets the associated thread holds.
+	 */
+	long getTickets() {
+	    return priority + transferred;
+	}
+
+	/**
+	 * Set the number of tickets the associated thread holds to the
+	 * specified value.
+	 *
+	 * @param	priority	the new number of tickets.
+	 */
+	public void setPriority(int priority) {
+	    if (this.priority == priority)
+		return;
+
+	    long delta = (long) priority - this.priority;
+	    this.priority = priority;
+
+	    ticketsChanged(delta);
+	}
+
+	/**
+	 * Called when the associated thread starts waiting on the specified
+	 * queue. Its tickets are transferred to the queue's owner.
+	 *
+	 * @param	waitQueue	the queue that the associated thread is
+	 *				now waiting on.
+	 */
+	public void waitForAccess(TicketQueue waitQueue) {
+	    Lib.assertTrue(waitingOn == null);
+
+	    waitingOn = waitQueue;
+	    waitQueue.add(this);
+
+	    if (waitQueue.owner != null)
+		waitQueue.owner.transfer(getTickets());
+	}
+
+	/**
+	 * Called when the associated thread has acquired the specified queue.
+	 * If it transfers tickets, the associated thread now receives the
+	 * tickets of every thread waiting on it.
+	 *
+	 * @param	waitQueue	the queue that was acquired.
+	 */
+	public void acquire(TicketQueue waitQueue) {
+	    if (!waitQueue.transferPriority)
+		return;
+
+	    if (waitQueue.owner != null)
+		waitQueue.owner.release(waitQueue);
+
+	    waitQueue.owner = this;
+	    transfer(waitQueue.total);
+	}
+
+	/**
+	 * Called when the associated thread no longer owns the specified
+	 * queue, so it gives back the tickets transferred through it.
+	 */
+	void release(TicketQueue waitQueue) {
+	    Lib.assertTrue(waitQueue.owner == this);
+
+	    waitQueue.owner = null;
+	    transfer(-waitQueue.total);
+	}
+
+	/**
+	 * Add <i>delta</i> tickets transferred to the associated thread.
+	 */
+	void transfer(long delta) {
+	    transferred += delta;
+	    ticketsChanged(delta);
+	}
+
+	/**
+	 * Pass a change in the tickets of the associated thread on to the
+	 * queue it is waiting on, and from there along the chain of owners.
+	 * Stops if the chain leads back here, which only a deadlock can do.
+	 */
+	private void ticketsChanged(long delta) {
+	    if (delta == 0)
+		return;
+
+	    TicketState state = this;
+	    while (state.waitingOn != null) {
+		TicketQueue queue = state.waitingOn;
+		queue.ticketsChanged(state, delta);
+
+		state = queue.owner;
+		if (state == null || state == this)
+		    return;
+
+		state.transferred += delta;
+	    }
+	}
+
+	/** The number of tickets transferred to the associated thread. */
+	long transferred = 0;
+	/** The queue the associated thread is waiting on, if any. */
+	TicketQueue waitingOn = null;
+    }
+}
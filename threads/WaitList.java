@@ -0,0 +1,93 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+/**
+ * A FIFO list of blocked threads, linked through the threads themselves, so
+ * that adding and removing threads allocates nothing. A thread can be on at
+ * most one <tt>WaitList</tt> at a time, which is always true of a thread
+ * blocked on a condition variable.
+ *
+ * <p>
+ * Interrupts must be disabled when using a <tt>WaitList</tt>.
+ */
+final class WaitList {
+    /**
+     * Allocate a new, empty wait list.
+     */
+    WaitList() {
+    }
+
+    /**
+     * Add a thread to the end of this list. The thread must not already be on
+     * a wait list.
+     *
+     * @param	thread	the thread to add.
+     */
+    void add(KThread thread) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+	Lib.assertTrue(thread.waitNext == null && thread != last);
+
+	if (first == null)
+	    first = thread;
+	else
+	    last.waitNext = thread;
+
+	last = thread;
+	size++;
+    }
+
+    /**
+     * Remove the first thread from this list and move it to the ready queue.
+     *
+     * @return	<tt>true</tt> if a thread was woken, or <tt>false</tt> if
+     *		this list was empty.
+     */
+    boolean wakeFirst() {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	KThread thread = first;
+	if (thread == null)
+	    return false;
+
+	first = thread.waitNext;
+	if (first == null)
+	    last = null;
+	size--;
+
+	thread.waitNext = null;
+	thread.ready();
+	return true;
+    }
+
+    /**
+     * Empty this list, and move all the threads that were on it to the ready
+     * queue, in order.
+     */
+    void wakeAll() {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	KThread thread = first;
+	first = last = null;
+	size = 0;
+
+	while (thread != null) {
+	    KThread next = thread.waitNext;
+	    thread.waitNext = null;
+	    thread.ready();
+	    thread = next;
+	}
+    }
+
+    /**
+     * Return the number of threads on this list.
+     *
+     * @return	the number of threads on this list.
+     */
+    int size() {
+	return size;
+    }
+
+    private KThread first = null, last = null;
+    private int size = 0;
+}